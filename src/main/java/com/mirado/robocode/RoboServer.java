@@ -6,6 +6,8 @@ import com.mirado.robocode.archaius.Config;
 import com.mirado.robocode.dropwizard.RobocodeApplication;
 import com.mirado.robocode.git.GitPoller;
 import com.mirado.robocode.guice.RoboModule;
+import com.mirado.robocode.services.Registry;
+import com.mirado.robocode.services.RoboService;
 import com.mirado.robocode.services.ScoreService;
 
 import java.io.File;
@@ -42,6 +44,9 @@ public class RoboServer
             Injector injector = Guice.createInjector(new RoboModule());
             RobocodeApplication application = new RobocodeApplication(injector);
             ScoreService scoreService = injector.getInstance(ScoreService.class);
+            Registry.Contents registered = injector.getInstance(Registry.class).load();
+            scoreService.restore(registered.getBattles());
+            injector.getInstance(RoboService.class).restore(registered.getRobots());
             scoreService.start();
             GitPoller gitPoller = injector.getInstance(GitPoller.class);
             gitPoller.start();
@@ -0,0 +1,126 @@
+package com.mirado.robocode.domain;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results sidecar uploaded next to each recording, so the scoreboard can be built without reading recordings.
+ */
+@JsonDeserialize(builder = BattleSummary.Builder.class)
+public class BattleSummary
+{
+    private final String setupId;
+    private final Instant timestamp;
+    private final List<RobotScore> results;
+    private final Integer rounds;
+    private final Integer recordedRounds;
+
+    private BattleSummary(Builder builder)
+    {
+        setupId = builder.setupId;
+        timestamp = builder.timestamp;
+        results = builder.results == null ? Collections.emptyList() : Collections.unmodifiableList(builder.results);
+        rounds = builder.rounds;
+        recordedRounds = builder.recordedRounds;
+    }
+
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public static Builder newBuilder(BattleSummary copy)
+    {
+        return new Builder()
+                .setupId(copy.setupId)
+                .timestamp(copy.timestamp)
+                .results(copy.results)
+                .rounds(copy.rounds)
+                .recordedRounds(copy.recordedRounds);
+    }
+
+    public String getSetupId()
+    {
+        return setupId;
+    }
+
+    public Instant getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public List<RobotScore> getResults()
+    {
+        return results;
+    }
+
+    /**
+     * @return rounds the results cover, null for summaries from before this was recorded
+     */
+    public Integer getRounds()
+    {
+        return rounds;
+    }
+
+    /**
+     * @return rounds in the recording, fewer than {@link #getRounds()} when only part of the battle was recorded,
+     * null for summaries from before this was recorded
+     */
+    public Integer getRecordedRounds()
+    {
+        return recordedRounds;
+    }
+
+    @JsonPOJOBuilder(withPrefix = "")
+    public static final class Builder
+    {
+        private String setupId;
+        private Instant timestamp;
+        private List<RobotScore> results;
+        private Integer rounds;
+        private Integer recordedRounds;
+
+        private Builder()
+        {
+        }
+
+        public Builder setupId(String val)
+        {
+            setupId = val;
+            return this;
+        }
+
+        public Builder timestamp(Instant val)
+        {
+            timestamp = val;
+            return this;
+        }
+
+        public Builder results(List<RobotScore> val)
+        {
+            results = val;
+            return this;
+        }
+
+        public Builder rounds(Integer val)
+        {
+            rounds = val;
+            return this;
+        }
+
+        public Builder recordedRounds(Integer val)
+        {
+            recordedRounds = val;
+            return this;
+        }
+
+        public BattleSummary build()
+        {
+            return new BattleSummary(this);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.mirado.robocode.domain;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+
+/**
+ * The results of one robot in a battle, as stored in the results sidecar next to each recording.
+ */
+@JsonDeserialize(builder = RobotScore.Builder.class)
+public class RobotScore
+{
+    private final String name;
+    private final String version;
+    private final String className;
+    private final String author;
+    private final String teamLeaderName;
+    private final int rank;
+    private final int score;
+    private final int survival;
+    private final int lastSurvivorBonus;
+    private final int bulletDamage;
+    private final int bulletDamageBonus;
+    private final int ramDamage;
+    private final int ramDamageBonus;
+    private final int firsts;
+    private final int seconds;
+    private final int thirds;
+
+    private RobotScore(Builder builder)
+    {
+        name = builder.name;
+        version = builder.version;
+        className = builder.className;
+        author = builder.author;
+        teamLeaderName = builder.teamLeaderName;
+        rank = builder.rank;
+        score = builder.score;
+        survival = builder.survival;
+        lastSurvivorBonus = builder.lastSurvivorBonus;
+        bulletDamage = builder.bulletDamage;
+        bulletDamageBonus = builder.bulletDamageBonus;
+        ramDamage = builder.ramDamage;
+        ramDamageBonus = builder.ramDamageBonus;
+        firsts = builder.firsts;
+        seconds = builder.seconds;
+        thirds = builder.thirds;
+    }
+
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+    public String getClassName()
+    {
+        return className;
+    }
+
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    public String getTeamLeaderName()
+    {
+        return teamLeaderName;
+    }
+
+    public int getRank()
+    {
+        return rank;
+    }
+
+    public int getScore()
+    {
+        return score;
+    }
+
+    public int getSurvival()
+    {
+        return survival;
+    }
+
+    public int getLastSurvivorBonus()
+    {
+        return lastSurvivorBonus;
+    }
+
+    public int getBulletDamage()
+    {
+        return bulletDamage;
+    }
+
+    public int getBulletDamageBonus()
+    {
+        return bulletDamageBonus;
+    }
+
+    public int getRamDamage()
+    {
+        return ramDamage;
+    }
+
+    public int getRamDamageBonus()
+    {
+        return ramDamageBonus;
+    }
+
+    public int getFirsts()
+    {
+        return firsts;
+    }
+
+    public int getSeconds()
+    {
+        return seconds;
+    }
+
+    public int getThirds()
+    {
+        return thirds;
+    }
+
+    @JsonPOJOBuilder(withPrefix = "")
+    public static final class Builder
+    {
+        private String name;
+        private String version;
+        private String className;
+        private String author;
+        private String teamLeaderName;
+        private int rank;
+        private int score;
+        private int survival;
+        private int lastSurvivorBonus;
+        private int bulletDamage;
+        private int bulletDamageBonus;
+        private int ramDamage;
+        private int ramDamageBonus;
+        private int firsts;
+        private int seconds;
+        private int thirds;
+
+        private Builder()
+        {
+        }
+
+        public Builder name(String val)
+        {
+            name = val;
+            return this;
+        }
+
+        public Builder version(String val)
+        {
+            version = val;
+            return this;
+        }
+
+        public Builder className(String val)
+        {
+            className = val;
+            return this;
+        }
+
+        public Builder author(String val)
+        {
+            author = val;
+            return this;
+        }
+
+        public Builder teamLeaderName(String val)
+        {
+            teamLeaderName = val;
+            return this;
+        }
+
+        public Builder rank(int val)
+        {
+            rank = val;
+            return this;
+        }
+
+        public Builder score(int val)
+        {
+            score = val;
+            return this;
+        }
+
+        public Builder survival(int val)
+        {
+            survival = val;
+            return this;
+        }
+
+        public Builder lastSurvivorBonus(int val)
+        {
+            lastSurvivorBonus = val;
+            return this;
+        }
+
+        public Builder bulletDamage(int val)
+        {
+            bulletDamage = val;
+            return this;
+        }
+
+        public Builder bulletDamageBonus(int val)
+        {
+            bulletDamageBonus = val;
+            return this;
+        }
+
+        public Builder ramDamage(int val)
+        {
+            ramDamage = val;
+            return this;
+        }
+
+        public Builder ramDamageBonus(int val)
+        {
+            ramDamageBonus = val;
+            return this;
+        }
+
+        public Builder firsts(int val)
+        {
+            firsts = val;
+            return this;
+        }
+
+        public Builder seconds(int val)
+        {
+            seconds = val;
+            return this;
+        }
+
+        public Builder thirds(int val)
+        {
+            thirds = val;
+            return this;
+        }
+
+        public RobotScore build()
+        {
+            return new RobotScore(this);
+        }
+    }
+}
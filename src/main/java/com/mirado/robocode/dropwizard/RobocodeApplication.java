@@ -1,13 +1,24 @@
 package com.mirado.robocode.dropwizard;
 
+import com.codahale.metrics.Gauge;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.inject.Injector;
+import com.mirado.robocode.engine.BattleWorkerPool;
+import com.mirado.robocode.engine.LiveBattleHub;
+import com.mirado.robocode.engine.TurnHistogram;
+import com.mirado.robocode.git.GithubClient;
+import com.mirado.robocode.resources.LiveBattleResource;
 import com.mirado.robocode.resources.StatisticsResource;
+import com.mirado.robocode.resources.WebhookResource;
+import com.mirado.robocode.services.BattleScheduler;
 import io.dropwizard.Application;
 import io.dropwizard.Bundle;
 import io.dropwizard.Configuration;
 import io.dropwizard.setup.Environment;
+import org.glassfish.jersey.media.sse.SseFeature;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Kurt on 18/11/16.
@@ -33,7 +44,34 @@ public class RobocodeApplication extends Application<RoboConfiguration>
     public void run(RoboConfiguration configuration, Environment environment) throws Exception
     {
         environment.jersey().register(injector.getInstance(StatisticsResource.class));
+        environment.jersey().register(injector.getInstance(WebhookResource.class));
+        environment.jersey().register(SseFeature.class);
+        environment.jersey().register(injector.getInstance(LiveBattleResource.class));
+        GithubClient githubClient = injector.getInstance(GithubClient.class);
+        environment.metrics().register("github.cache.hits", (Gauge<Long>) githubClient::getHits);
+        environment.metrics().register("github.cache.misses", (Gauge<Long>) githubClient::getMisses);
+        environment.metrics().register("github.cache.bytes", (Gauge<Long>) githubClient::getCachedBytes);
+        environment.metrics().register("github.throttled", (Gauge<Long>) githubClient::getThrottled);
+        BattleScheduler battleScheduler = injector.getInstance(BattleScheduler.class);
+        environment.metrics().register("battle.pending.requests", (Gauge<Integer>) battleScheduler::getPendingRequests);
+        environment.metrics().register("battle.pending.millis", (Gauge<Long>) battleScheduler::getPendingMillis);
+        environment.metrics().register("battle.superseded", (Gauge<Long>) battleScheduler::getSuperseded);
+        BattleWorkerPool battleWorkerPool = injector.getInstance(BattleWorkerPool.class);
+        environment.metrics().register("battle.turns", (Gauge<Long>) battleWorkerPool::getBattleTurns);
+        environment.metrics().register("battle.skipped_turns", (Gauge<Long>) battleWorkerPool::getSkippedTurns);
+        environment.metrics().register("battle.turn.p50_micros", (Gauge<Long>) () -> getTurnMicros(battleWorkerPool, 0.5));
+        environment.metrics().register("battle.turn.p99_micros", (Gauge<Long>) () -> getTurnMicros(battleWorkerPool, 0.99));
+        environment.metrics().register("battle.turn.max_micros", (Gauge<Long>) () -> getTurnMicros(battleWorkerPool, 1));
+        LiveBattleHub liveBattleHub = injector.getInstance(LiveBattleHub.class);
+        environment.metrics().register("stream.viewers", (Gauge<Integer>) liveBattleHub::getViewers);
+        environment.metrics().register("stream.dropped", (Gauge<Long>) liveBattleHub::getDropped);
         environment.getObjectMapper().registerModule(new JavaTimeModule());
         environment.getObjectMapper().configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
     }
+
+    private static long getTurnMicros(BattleWorkerPool battleWorkerPool, double quantile)
+    {
+        TurnHistogram turnTimes = battleWorkerPool.getLastTurnTimes();
+        return turnTimes == null ? 0 : TimeUnit.NANOSECONDS.toMicros(turnTimes.getQuantileNanos(quantile));
+    }
 }
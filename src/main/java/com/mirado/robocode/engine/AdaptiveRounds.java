@@ -0,0 +1,130 @@
+package com.mirado.robocode.engine;
+
+import robocode.control.RobotResults;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when a battle fought in chunks of rounds has gone on long enough. Every chunk gives a sample of each
+ * robot's score per round. The ranking is settled once every robot's mean is apart from the next robot's by at least
+ * the critical value of Student's t, at the confidence the configured z stands for, times the standard error. With
+ * only a handful of chunks the variance is a rough estimate, t accounts for that where z would settle far too early.
+ */
+class AdaptiveRounds
+{
+    private final double confidenceZ;
+    private final RobotResultsMerger merger = new RobotResultsMerger();
+    private final Map<String, List<Double>> samples = new HashMap<>();
+    private int rounds;
+    private int chunks;
+
+    AdaptiveRounds(double confidenceZ)
+    {
+        this.confidenceZ = confidenceZ;
+    }
+
+    void add(List<RobotResults> chunk, int chunkRounds)
+    {
+        merger.add(chunk);
+        for (RobotResults robotResults : chunk)
+        {
+            samples.computeIfAbsent(robotResults.getRobot().getClassName(), className -> new ArrayList<>())
+                    .add(robotResults.getScore() / (double) chunkRounds);
+        }
+        rounds += chunkRounds;
+        chunks++;
+    }
+
+    int getRounds()
+    {
+        return rounds;
+    }
+
+    List<RobotResults> getResults()
+    {
+        return merger.getResults();
+    }
+
+    /**
+     * Needs at least two chunks to estimate the variance.
+     */
+    boolean isSettled()
+    {
+        if (chunks < 2)
+        {
+            return false;
+        }
+        List<double[]> meanAndError = new ArrayList<>();
+        for (List<Double> robotSamples : samples.values())
+        {
+            double mean = 0;
+            for (double sample : robotSamples)
+            {
+                mean += sample;
+            }
+            mean /= robotSamples.size();
+            double variance = 0;
+            for (double sample : robotSamples)
+            {
+                variance += (sample - mean) * (sample - mean);
+            }
+            variance /= Math.max(1, robotSamples.size() - 1);
+            meanAndError.add(new double[]{mean, variance / robotSamples.size()});
+        }
+        meanAndError.sort((a, b) -> Double.compare(b[0], a[0]));
+        double criticalValue = getCriticalT(confidenceZ, chunks - 1);
+        for (int i = 0; i + 1 < meanAndError.size(); i++)
+        {
+            double difference = meanAndError.get(i)[0] - meanAndError.get(i + 1)[0];
+            double standardError = Math.sqrt(meanAndError.get(i)[1] + meanAndError.get(i + 1)[1]);
+            //No spread at all means more rounds won't change anything
+            if (standardError > 0 && difference < criticalValue * standardError)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the critical value of Student's t with the degrees of freedom at the confidence of the normal critical
+     * value z. Exact for one and two degrees of freedom, the Cornish-Fisher expansion above that.
+     */
+    static double getCriticalT(double z, int degreesOfFreedom)
+    {
+        double p = getNormalCdf(z);
+        if (degreesOfFreedom <= 1)
+        {
+            return Math.tan(Math.PI * (p - 0.5));
+        }
+        if (degreesOfFreedom == 2)
+        {
+            return (2 * p - 1) / Math.sqrt(2 * p * (1 - p));
+        }
+        double v = degreesOfFreedom;
+        double z2 = z * z;
+        double z3 = z2 * z;
+        double z5 = z3 * z2;
+        double z7 = z5 * z2;
+        double z9 = z7 * z2;
+        return z
+                + (z3 + z) / (4 * v)
+                + (5 * z5 + 16 * z3 + 3 * z) / (96 * v * v)
+                + (3 * z7 + 19 * z5 + 17 * z3 - 15 * z) / (384 * v * v * v)
+                + (79 * z9 + 776 * z7 + 1482 * z5 - 1920 * z3 - 945 * z) / (92160 * v * v * v * v);
+    }
+
+    /**
+     * Abramowitz and Stegun 7.1.26, good to about 1e-7.
+     */
+    private static double getNormalCdf(double z)
+    {
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+        return z >= 0 ? 0.5 * (1 + erf) : 0.5 * (1 - erf);
+    }
+}
@@ -0,0 +1,322 @@
+package com.mirado.robocode.engine;
+
+import com.mirado.robocode.archaius.Config;
+import com.netflix.archaius.api.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import robocode.control.events.BattleCompletedEvent;
+import robocode.control.events.BattleErrorEvent;
+import robocode.control.events.BattleEvent;
+import robocode.control.events.BattleFinishedEvent;
+import robocode.control.events.BattleMessageEvent;
+import robocode.control.events.BattlePausedEvent;
+import robocode.control.events.BattleResumedEvent;
+import robocode.control.events.BattleStartedEvent;
+import robocode.control.events.IBattleListener;
+import robocode.control.events.RoundEndedEvent;
+import robocode.control.events.RoundStartedEvent;
+import robocode.control.events.TurnEndedEvent;
+import robocode.control.events.TurnStartedEvent;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes the battle events off the engine thread. The engine only puts each event in a fixed size ring, every consumer
+ * drains the ring on its own thread and gets the events through the usual {@link IBattleListener} callbacks.
+ * <p>
+ * With {@code battle.event_policy} set to block, the engine waits for the slowest consumer when the ring is full. With
+ * drop it never waits and a consumer that falls a whole ring behind skips the events it missed.
+ * <p>
+ * Most events come from the engine thread, but Robocode also reports messages and errors from robot and host threads,
+ * so publishing is serialized on the bus: each event takes the next sequence and is published before the next one.
+ */
+public class BattleEventBus implements IBattleListener
+{
+    private static final Logger logger = LoggerFactory.getLogger(BattleEventBus.class);
+    private static final Property<Integer> BUFFER_SIZE = Config.getPropertyFactory().getProperty("battle.event_buffer").asInteger(1024);
+    private static final Property<String> POLICY = Config.getPropertyFactory().getProperty("battle.event_policy").asString("block");
+    private static final String DROP = "drop";
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private final AtomicReferenceArray<BattleEvent> events;
+    private final int mask;
+    private final boolean drop;
+    //Claimed before a slot is overwritten, so a consumer can tell the event it read was already replaced
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong published = new AtomicLong(-1);
+    private volatile Consumer[] consumers = new Consumer[0];
+    //Guarded by this, like the sequence
+    private long slowestCursor;
+
+    public BattleEventBus()
+    {
+        this(BUFFER_SIZE.get(), DROP.equals(POLICY.get()));
+    }
+
+    /**
+     * @param bufferSize rounded up to a power of two
+     * @param drop       whether consumers that fall behind skip events rather than hold up the engine
+     */
+    BattleEventBus(int bufferSize, boolean drop)
+    {
+        int size = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        events = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.drop = drop;
+    }
+
+    /**
+     * Starts a thread feeding the listener every event published from now on.
+     */
+    public synchronized void addConsumer(String name, IBattleListener listener)
+    {
+        Consumer consumer = new Consumer(name, listener, published.get() + 1);
+        Consumer[] added = Arrays.copyOf(consumers, consumers.length + 1);
+        added[consumers.length] = consumer;
+        consumers = added;
+        consumer.thread.start();
+    }
+
+    /**
+     * @return events skipped by consumers that fell behind
+     */
+    public long getDropped()
+    {
+        long dropped = 0;
+        for (Consumer consumer : consumers)
+        {
+            dropped += consumer.dropped.get();
+        }
+        return dropped;
+    }
+
+    private synchronized void publish(BattleEvent event)
+    {
+        long sequence = published.get() + 1;
+        if (!drop)
+        {
+            awaitCapacity(sequence);
+        }
+        claimed.set(sequence);
+        events.set((int) sequence & mask, event);
+        published.set(sequence);
+        for (Consumer consumer : consumers)
+        {
+            if (consumer.waiting)
+            {
+                LockSupport.unpark(consumer.thread);
+            }
+        }
+    }
+
+    private void awaitCapacity(long sequence)
+    {
+        while (sequence - slowestCursor > mask)
+        {
+            long slowest = sequence;
+            for (Consumer consumer : consumers)
+            {
+                slowest = Math.min(slowest, consumer.cursor.get());
+            }
+            slowestCursor = slowest;
+            if (sequence - slowestCursor > mask)
+            {
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            }
+        }
+    }
+
+    @Override
+    public void onBattleStarted(BattleStartedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onBattleFinished(BattleFinishedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onBattleCompleted(BattleCompletedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onBattlePaused(BattlePausedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onBattleResumed(BattleResumedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onRoundStarted(RoundStartedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onRoundEnded(RoundEndedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onTurnStarted(TurnStartedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onTurnEnded(TurnEndedEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onBattleMessage(BattleMessageEvent event)
+    {
+        publish(event);
+    }
+
+    @Override
+    public void onBattleError(BattleErrorEvent event)
+    {
+        publish(event);
+    }
+
+    private static void dispatch(IBattleListener listener, BattleEvent event)
+    {
+        if (event instanceof TurnStartedEvent)
+        {
+            listener.onTurnStarted((TurnStartedEvent) event);
+        }
+        else if (event instanceof TurnEndedEvent)
+        {
+            listener.onTurnEnded((TurnEndedEvent) event);
+        }
+        else if (event instanceof RoundStartedEvent)
+        {
+            listener.onRoundStarted((RoundStartedEvent) event);
+        }
+        else if (event instanceof RoundEndedEvent)
+        {
+            listener.onRoundEnded((RoundEndedEvent) event);
+        }
+        else if (event instanceof BattleStartedEvent)
+        {
+            listener.onBattleStarted((BattleStartedEvent) event);
+        }
+        else if (event instanceof BattleFinishedEvent)
+        {
+            listener.onBattleFinished((BattleFinishedEvent) event);
+        }
+        else if (event instanceof BattleCompletedEvent)
+        {
+            listener.onBattleCompleted((BattleCompletedEvent) event);
+        }
+        else if (event instanceof BattlePausedEvent)
+        {
+            listener.onBattlePaused((BattlePausedEvent) event);
+        }
+        else if (event instanceof BattleResumedEvent)
+        {
+            listener.onBattleResumed((BattleResumedEvent) event);
+        }
+        else if (event instanceof BattleMessageEvent)
+        {
+            listener.onBattleMessage((BattleMessageEvent) event);
+        }
+        else if (event instanceof BattleErrorEvent)
+        {
+            listener.onBattleError((BattleErrorEvent) event);
+        }
+    }
+
+    private final class Consumer implements Runnable
+    {
+        private final String name;
+        private final IBattleListener listener;
+        private final Thread thread;
+        //Next sequence to read
+        private final AtomicLong cursor;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean waiting;
+
+        private Consumer(String name, IBattleListener listener, long cursor)
+        {
+            this.name = name;
+            this.listener = listener;
+            this.cursor = new AtomicLong(cursor);
+            thread = new Thread(this, "battle-events-" + name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                consume();
+            }
+            finally
+            {
+                //Can't take the bus lock here, the engine may hold it waiting for this consumer. Out of the way instead
+                cursor.set(Long.MAX_VALUE);
+                logger.error("Battle event consumer {} stopped", name);
+            }
+        }
+
+        private void consume()
+        {
+            long next = cursor.get();
+            while (true)
+            {
+                long available = published.get();
+                if (next > available)
+                {
+                    waiting = true;
+                    if (next > published.get())
+                    {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                for (; next <= available; next++)
+                {
+                    BattleEvent event = events.get((int) next & mask);
+                    long overwritten = claimed.get() - mask;
+                    if (drop && next < overwritten)
+                    {
+                        logger.warn("Battle event consumer {} fell behind, dropping {} events", name, overwritten - next);
+                        dropped.addAndGet(overwritten - next);
+                        next = overwritten - 1;
+                        continue;
+                    }
+                    try
+                    {
+                        dispatch(listener, event);
+                    }
+                    catch (Throwable ex)
+                    {
+                        //Also errors, a consumer that stops reading would hold up the engine for good
+                        logger.error("Battle event consumer {} failed", name, ex);
+                    }
+                    cursor.lazySet(next + 1);
+                }
+            }
+        }
+    }
+}
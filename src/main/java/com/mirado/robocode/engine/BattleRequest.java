@@ -0,0 +1,119 @@
+package com.mirado.robocode.engine;
+
+import java.io.Serializable;
+
+/**
+ * Describes a single battle to run. Sent as is to the battle workers.
+ */
+public class BattleRequest implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private final int numRounds;
+    private final int width;
+    private final int height;
+    private final String robots;
+    private final Long seed;
+
+    private BattleRequest(Builder builder)
+    {
+        seed = builder.seed;
+        numRounds = builder.numRounds;
+        width = builder.width;
+        height = builder.height;
+        robots = builder.robots;
+    }
+
+    public static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    public static Builder newBuilder(BattleRequest copy)
+    {
+        return new Builder()
+                .numRounds(copy.numRounds)
+                .width(copy.width)
+                .height(copy.height)
+                .robots(copy.robots)
+                .seed(copy.seed);
+    }
+
+    public int getNumRounds()
+    {
+        return numRounds;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return comma separated full class names of the robots to battle, null for every robot in the repository
+     */
+    public String getRobots()
+    {
+        return robots;
+    }
+
+    /**
+     * @return seed for Robocode's random numbers, null for a random battle
+     */
+    public Long getSeed()
+    {
+        return seed;
+    }
+
+    public static final class Builder
+    {
+        private int numRounds;
+        private int width;
+        private int height;
+        private String robots;
+        private Long seed;
+
+        private Builder()
+        {
+        }
+
+        public Builder numRounds(int val)
+        {
+            numRounds = val;
+            return this;
+        }
+
+        public Builder width(int val)
+        {
+            width = val;
+            return this;
+        }
+
+        public Builder height(int val)
+        {
+            height = val;
+            return this;
+        }
+
+        public Builder robots(String val)
+        {
+            robots = val;
+            return this;
+        }
+
+        public Builder seed(Long val)
+        {
+            seed = val;
+            return this;
+        }
+
+        public BattleRequest build()
+        {
+            return new BattleRequest(this);
+        }
+    }
+}
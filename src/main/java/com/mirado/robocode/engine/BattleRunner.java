@@ -1,10 +1,11 @@
 package com.mirado.robocode.engine;
 
 import com.mirado.robocode.archaius.Config;
-import com.netflix.archaius.api.Property;
 import net.sf.robocode.battle.IBattleManagerBase;
 import net.sf.robocode.core.ContainerBase;
+import net.sf.robocode.host.ICpuManager;
 import net.sf.robocode.repository.IRepositoryManager;
+import net.sf.robocode.settings.ISettingsManager;
 import net.sf.robocode.ui.IWindowManager;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -12,18 +13,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import robocode.control.BattleSpecification;
 import robocode.control.BattlefieldSpecification;
+import robocode.control.RandomFactory;
 import robocode.control.RobocodeEngine;
 import robocode.control.RobotResults;
 import robocode.control.RobotSpecification;
+import robocode.control.events.BattleAdaptor;
 import robocode.control.events.BattleCompletedEvent;
+import robocode.control.events.IBattleListener;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 /**
@@ -33,15 +43,18 @@ import java.util.stream.Collectors;
 public class BattleRunner
 {
     private static final Logger logger = LoggerFactory.getLogger(BattleRunner.class);
+    private static final File CPU_CONSTANT_DIRECTORY = new File("cache");
     private final RobocodeEngine robocodeEngine;
     private final IBattleManagerBase iBattleManagerBase;
     private final IRepositoryManager repositoryManager;
     private final IWindowManager windowManager;
     private final Object lock = new Object();
-    private final LoggingBattleListener loggingBattleListener = new LoggingBattleListener();
-    private final Property<Integer> width = Config.getPropertyFactory().getProperty("battlefield.width").asInteger(2048);
-    private final Property<Integer> height = Config.getPropertyFactory().getProperty("battlefield.height").asInteger(1536);
-
+    private final BattleEventBus battleEventBus = new BattleEventBus();
+    private final TelemetryBattleListener telemetryBattleListener = new TelemetryBattleListener();
+    private volatile BattleCompletedEvent battleCompletedEvent;
+    private volatile TelemetrySummary telemetry;
+    private boolean repositoryLoaded;
+    private boolean seeded;
 
     public BattleRunner()
     {
@@ -56,27 +69,69 @@ public class BattleRunner
             windowManager.init();
             windowManager.showRobocodeFrame(true, false);
         }
-        iBattleManagerBase.addListener(loggingBattleListener);
+        //Only what has to be done on the engine thread listens directly, the rest goes through the bus
+        iBattleManagerBase.addListener(new BattleAdaptor()
+        {
+            @Override
+            public void onBattleCompleted(BattleCompletedEvent event)
+            {
+                battleCompletedEvent = event;
+            }
+        });
+        iBattleManagerBase.addListener(telemetryBattleListener);
+        iBattleManagerBase.addListener(battleEventBus);
+        battleEventBus.addConsumer("logging", new LoggingBattleListener());
+        calibrateCpu();
+    }
+
+    /**
+     * Feeds the listener the battle events on a thread of its own, so it can't slow the battle down.
+     */
+    public void addBattleListener(String name, IBattleListener listener)
+    {
+        battleEventBus.addConsumer(name, listener);
     }
 
-    public Pair<List<RobotResults>, File> runBattle()
+    /**
+     * Loads the robot repository ahead of the first battle.
+     */
+    public void warmUp() throws IOException
     {
-        repositoryManager.reload(true);
-        RobotSpecification[] robots = robocodeEngine.getLocalRepository();
         synchronized (lock)
         {
-            iBattleManagerBase.startNewBattle(new BattleSpecification(10, new BattlefieldSpecification(width.get(), height.get()), robots), null, true, true);
+            refreshRepository(null);
         }
+    }
+
+    /**
+     * @param changedRobots full class names of the robots that changed since the last battle, null if unknown
+     */
+    public Pair<List<RobotResults>, File> runBattle(BattleRequest battleRequest, Collection<String> changedRobots)
+    {
         try
         {
-            final File file = recordFile(iBattleManagerBase);
+            final File file;
+            final BattleCompletedEvent completedEvent;
+            synchronized (lock)
+            {
+                refreshRepository(changedRobots);
+                battleCompletedEvent = null;
+                seedRandom(battleRequest.getSeed());
+                RobotSpecification[] robots = battleRequest.getRobots() == null
+                        ? robocodeEngine.getLocalRepository()
+                        : robocodeEngine.getLocalRepository(battleRequest.getRobots());
+                BattlefieldSpecification battlefield = new BattlefieldSpecification(battleRequest.getWidth(), battleRequest.getHeight());
+                iBattleManagerBase.startNewBattle(new BattleSpecification(battleRequest.getNumRounds(), battlefield, robots), null, true, true);
+                file = recordFile(iBattleManagerBase);
+                completedEvent = battleCompletedEvent;
+                telemetry = telemetryBattleListener.getSummary();
+            }
             logger.info("Recorded to file {} ", file.getAbsolutePath());
-            BattleCompletedEvent battleCompletedEvent = loggingBattleListener.getBattleCompletedEvent();
-            if (battleCompletedEvent == null)
+            if (completedEvent == null)
             {
                 throw new IllegalStateException("Could not get results :(");
             }
-            List<RobotResults> results = Arrays.stream(battleCompletedEvent.getSortedResults())
+            List<RobotResults> results = Arrays.stream(completedEvent.getSortedResults())
                     .map(result -> (RobotResults) result)
                     .collect(Collectors.toList());
             return Pair.of(results, file);
@@ -88,6 +143,14 @@ public class BattleRunner
         }
     }
 
+    /**
+     * @return the telemetry of the last battle run, null if none has run
+     */
+    public TelemetrySummary getTelemetry()
+    {
+        return telemetry;
+    }
+
     public List<RobotResults> replay(byte[] bytes) throws IOException
     {
         try
@@ -126,6 +189,104 @@ public class BattleRunner
         }
     }
 
+    /**
+     * Robocode measures the speed of the machine for 5 seconds before its first battle to decide how long robots may
+     * take per turn. Measure once per Robocode version and core count and reuse the result in every engine, one engine
+     * at a time so they don't skew each other's measurement.
+     */
+    private static void calibrateCpu()
+    {
+        ISettingsManager settingsManager = ContainerBase.getComponent(ISettingsManager.class);
+        File cacheFile = new File(CPU_CONSTANT_DIRECTORY, "cpu-constant-" + Config.getRoboCodeVersion() + "-" + Runtime.getRuntime().availableProcessors());
+        try
+        {
+            FileUtils.forceMkdir(CPU_CONSTANT_DIRECTORY);
+            try (FileChannel channel = new RandomAccessFile(new File(CPU_CONSTANT_DIRECTORY, ".cpu-constant.lock"), "rw").getChannel();
+                 FileLock ignored = channel.lock())
+            {
+                if (cacheFile.isFile())
+                {
+                    settingsManager.setCpuConstant(Long.parseLong(FileUtils.readFileToString(cacheFile, StandardCharsets.UTF_8).trim()));
+                    return;
+                }
+                ICpuManager cpuManager = ContainerBase.getComponent(ICpuManager.class);
+                cpuManager.calculateCpuConstant();
+                FileUtils.writeStringToFile(cacheFile, Long.toString(cpuManager.getCpuConstant()), StandardCharsets.UTF_8);
+            }
+        }
+        catch (IOException | NumberFormatException ex)
+        {
+            //Robocode measures on its own first battle instead
+            logger.error("Could not calibrate cpu from {}", cacheFile, ex);
+        }
+    }
+
+    private void seedRandom(Long seed)
+    {
+        if (seed != null)
+        {
+            RandomFactory.resetDeterministic(seed);
+            seeded = true;
+        }
+        else if (seeded)
+        {
+            RandomFactory.setRandom(new Random());
+            clearDeterministic();
+            seeded = false;
+        }
+    }
+
+    /**
+     * setRandom leaves the flag resetDeterministic set, so Robocode would still take an unseeded battle for a
+     * deterministic one. There is no setter, have to use reflection.
+     */
+    private static void clearDeterministic()
+    {
+        try
+        {
+            Field field = RandomFactory.class.getDeclaredField("isDeterministic");
+            field.setAccessible(true);
+            field.setBoolean(null, false);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            logger.warn("Could not clear RandomFactory.isDeterministic, unseeded battles still report being deterministic", ex);
+        }
+    }
+
+    /**
+     * Only updates the repository entries of the robots that changed, the rest stay as they are. The first battle
+     * loads the saved robot database and rescans what changed on disk since it was saved.
+     * <p>
+     * Battle workers share the robots directory, so don't let them rescan it and write the robot database at the same
+     * time.
+     */
+    private void refreshRepository(Collection<String> changedRobots) throws IOException
+    {
+        if (repositoryLoaded && changedRobots != null && changedRobots.isEmpty())
+        {
+            return;
+        }
+        File lockFile = new File(repositoryManager.getRobotsDirectory(), ".repository.lock");
+        try (FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+             FileLock ignored = channel.lock())
+        {
+            if (!repositoryLoaded || changedRobots == null)
+            {
+                repositoryManager.reload(false);
+                repositoryLoaded = true;
+            }
+            else
+            {
+                for (String changedRobot : changedRobots)
+                {
+                    //Falls back to rescanning the robots directory for robots that weren't in the repository yet
+                    repositoryManager.refresh(changedRobot);
+                }
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private File recordFile(IBattleManagerBase iBattleManagerBase)
     {
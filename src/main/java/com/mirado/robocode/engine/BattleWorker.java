@@ -0,0 +1,130 @@
+package com.mirado.robocode.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Handle to a forked JVM running {@link BattleWorkerMain}. The process is started on first use and restarted if it
+ * dies. Not thread safe, the pool makes sure only one job uses a worker at a time.
+ */
+class BattleWorker
+{
+    private static final Logger logger = LoggerFactory.getLogger(BattleWorker.class);
+    private static final String[] FORWARDED_PROPERTIES = {"ROBOTPATH", "NOSECURITY", "sun.io.useCanonCaches"};
+    private final int id;
+    private final String jvmOptions;
+    private final Consumer<TurnFrame> frameSink;
+    private Process process;
+    private ObjectOutputStream output;
+    private ObjectInputStream input;
+    private long robotsSequence;
+
+    /**
+     * @param frameSink gets the frames the worker streams while it runs a battle
+     */
+    BattleWorker(int id, String jvmOptions, Consumer<TurnFrame> frameSink)
+    {
+        this.id = id;
+        this.jvmOptions = jvmOptions;
+        this.frameSink = frameSink;
+    }
+
+    WorkerReply execute(WorkerCommand command) throws IOException
+    {
+        ensureStarted();
+        try
+        {
+            output.writeObject(command);
+            output.flush();
+            output.reset();
+            while (true)
+            {
+                Object message = input.readObject();
+                if (message instanceof WorkerReply)
+                {
+                    return (WorkerReply) message;
+                }
+                //Frames are interleaved with the replies, some can trail the reply of the last command
+                frameSink.accept((TurnFrame) message);
+            }
+        }
+        catch (IOException | ClassNotFoundException ex)
+        {
+            logger.error("Battle worker {} failed, restarting it on next use", id, ex);
+            destroy();
+            throw new IOException("Battle worker " + id + " failed", ex);
+        }
+    }
+
+    /**
+     * @return the last robot change the worker's repository has seen
+     */
+    long getRobotsSequence()
+    {
+        return robotsSequence;
+    }
+
+    void setRobotsSequence(long robotsSequence)
+    {
+        this.robotsSequence = robotsSequence;
+    }
+
+    void destroy()
+    {
+        if (process != null)
+        {
+            process.destroyForcibly();
+            process = null;
+        }
+    }
+
+    private void ensureStarted() throws IOException
+    {
+        if (process != null && process.isAlive())
+        {
+            return;
+        }
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String option : jvmOptions.split(" "))
+        {
+            if (!option.isEmpty())
+            {
+                command.add(option);
+            }
+        }
+        for (String property : FORWARDED_PROPERTIES)
+        {
+            String value = System.getProperty(property);
+            if (value != null)
+            {
+                command.add("-D" + property + "=" + value);
+            }
+        }
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BattleWorkerMain.class.getName());
+        logger.info("Starting battle worker {}: {}", id, command);
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(new File(".").getAbsoluteFile());
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        process = pb.start();
+        //A new process loads the whole repository on its first battle
+        robotsSequence = 0;
+        output = new ObjectOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        output.flush();
+        input = new ObjectInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+}
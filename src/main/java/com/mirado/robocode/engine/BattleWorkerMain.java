@@ -0,0 +1,111 @@
+package com.mirado.robocode.engine;
+
+import com.mirado.robocode.archaius.Config;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import robocode.control.RobotResults;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Entry point of a forked battle worker. Hosts its own {@link BattleRunner} and executes {@link WorkerCommand}s
+ * read from stdin, writing a {@link WorkerReply} for each to stdout.
+ */
+public class BattleWorkerMain
+{
+    private static final Logger logger = LoggerFactory.getLogger(BattleWorkerMain.class);
+
+    public static void main(String[] args) throws Exception
+    {
+        //Robocode and the logging both write to stdout, so keep it for the protocol only
+        PrintStream protocolStream = System.out;
+        System.setOut(System.err);
+        Config.setEnableUi(false);
+
+        ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(protocolStream));
+        output.flush();
+        ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(System.in));
+        BattleRunner battleRunner = new BattleRunner();
+        battleRunner.addBattleListener("live", new TurnFrameListener(frame -> write(output, frame)));
+        logger.info("Battle worker started");
+        while (true)
+        {
+            WorkerCommand command;
+            try
+            {
+                command = (WorkerCommand) input.readObject();
+            }
+            catch (EOFException ex)
+            {
+                logger.info("Server closed the connection, stopping battle worker");
+                System.exit(0);
+                return;
+            }
+            write(output, execute(battleRunner, command));
+        }
+    }
+
+    /**
+     * Replies and live frames share the stream, written from the main thread and the frame listener's thread.
+     */
+    private static void write(ObjectOutputStream output, Object message)
+    {
+        synchronized (output)
+        {
+            try
+            {
+                output.writeObject(message);
+                output.flush();
+                output.reset();
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not write to server, stopping battle worker", ex);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static WorkerReply execute(BattleRunner battleRunner, WorkerCommand command)
+    {
+        try
+        {
+            if (command.getType() == WorkerCommand.Type.BATTLE)
+            {
+                Pair<List<RobotResults>, File> pair = battleRunner.runBattle(command.getBattleRequest(), command.getChangedRobots());
+                if (pair == null)
+                {
+                    return WorkerReply.failure("No output from running battle");
+                }
+                return WorkerReply.success(pair.getLeft(), pair.getRight().getAbsolutePath(), battleRunner.getTelemetry());
+            }
+            else if (command.getType() == WorkerCommand.Type.WARM_UP)
+            {
+                battleRunner.warmUp();
+                return WorkerReply.success(null, null);
+            }
+            else if (command.getType() == WorkerCommand.Type.REPLAY)
+            {
+                return WorkerReply.success(battleRunner.replay(command.getRecording()), null);
+            }
+            else
+            {
+                return WorkerReply.failure("Unknown command " + command.getType());
+            }
+        }
+        catch (Exception ex)
+        {
+            logger.error("Error when executing {}", command.getType(), ex);
+            return WorkerReply.failure(ex.toString());
+        }
+    }
+}
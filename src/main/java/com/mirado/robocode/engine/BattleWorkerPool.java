@@ -0,0 +1,430 @@
+package com.mirado.robocode.engine;
+
+import com.mirado.robocode.archaius.Config;
+import com.netflix.archaius.api.Property;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import robocode.control.RobotResults;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Queues battles and replays and runs them concurrently on a pool of forked battle workers, each hosting its own
+ * Robocode engine. With {@code battle.workers} set to 0, or when the UI is enabled, everything runs one at a time on
+ * an in-process {@link BattleRunner} instead.
+ */
+public class BattleWorkerPool
+{
+    private static final Logger logger = LoggerFactory.getLogger(BattleWorkerPool.class);
+    private static final Property<Integer> WORKERS = Config.getPropertyFactory().getProperty("battle.workers").asInteger(Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+    private static final Property<String> WORKER_JVM_OPTIONS = Config.getPropertyFactory().getProperty("battle.worker_jvm_options").asString("-Xmx512m");
+    private static final Property<Boolean> ADAPTIVE_ROUNDS = Config.getPropertyFactory().getProperty("battle.adaptive_rounds").asBoolean(false);
+    private static final Property<Integer> ROUND_CHUNK = Config.getPropertyFactory().getProperty("battle.round_chunk").asInteger(5);
+    private static final Property<Integer> MAX_ROUNDS = Config.getPropertyFactory().getProperty("battle.max_rounds").asInteger(30);
+    private static final Property<Integer> SHARDS = Config.getPropertyFactory().getProperty("battle.shards").asInteger(1);
+    private static final Property<Double> CONFIDENCE_Z = Config.getPropertyFactory().getProperty("battle.confidence_z").asDouble(1.96);
+    private final Property<Integer> width = Config.getPropertyFactory().getProperty("battlefield.width").asInteger(2048);
+    private final Property<Integer> height = Config.getPropertyFactory().getProperty("battlefield.height").asInteger(1536);
+    private final BlockingQueue<BattleWorker> idleWorkers;
+    private final BattleRunner battleRunner;
+    private final ExecutorService executor;
+    private final ExecutorService warmUpExecutor = Executors.newCachedThreadPool(runnable ->
+    {
+        Thread thread = new Thread(runnable, "battle-warmup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //Shards only wait for idle workers, so they can't starve the battles waiting for them
+    private final ExecutorService shardExecutor = Executors.newCachedThreadPool(runnable ->
+    {
+        Thread thread = new Thread(runnable, "battle-shard");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Long> robotChanges = new HashMap<>();
+    private final AtomicLong battleTurns = new AtomicLong();
+    private final AtomicLong skippedTurns = new AtomicLong();
+    private volatile TelemetrySummary lastTelemetry;
+    private long robotsSequence;
+    private long inProcessRobotsSequence;
+
+    @Inject
+    public BattleWorkerPool(Provider<BattleRunner> battleRunnerProvider, LiveBattleHub liveBattleHub)
+    {
+        int size = Config.enableUi() ? 0 : WORKERS.get();
+        AtomicInteger threadCount = new AtomicInteger();
+        if (size <= 0)
+        {
+            logger.info("Running battles in process");
+            battleRunner = battleRunnerProvider.get();
+            battleRunner.addBattleListener("live", new TurnFrameListener(frame -> liveBattleHub.publish(0, frame)));
+            idleWorkers = null;
+            size = 1;
+        }
+        else
+        {
+            logger.info("Running battles on {} battle workers", size);
+            battleRunner = null;
+            idleWorkers = new ArrayBlockingQueue<>(size);
+            for (int i = 0; i < size; i++)
+            {
+                int id = i;
+                warmUp(new BattleWorker(id, WORKER_JVM_OPTIONS.get(), frame -> liveBattleHub.publish(id, frame)));
+            }
+        }
+        executor = Executors.newFixedThreadPool(size, runnable ->
+        {
+            Thread thread = new Thread(runnable, "battle-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a request for a battle with the configured defaults
+     */
+    public BattleRequest.Builder newBattleRequest()
+    {
+        return BattleRequest
+                .newBuilder()
+                .numRounds(10)
+                .width(width.get())
+                .height(height.get());
+    }
+
+    /**
+     * Records that robots were compiled, so the next battle on every worker refreshes just those robots.
+     *
+     * @param fullClassNames full class names of the robots
+     */
+    public synchronized void robotsChanged(Collection<String> fullClassNames)
+    {
+        robotsSequence++;
+        for (String fullClassName : fullClassNames)
+        {
+            robotChanges.put(fullClassName, robotsSequence);
+        }
+    }
+
+    /**
+     * Runs a battle. With {@code battle.adaptive_rounds} the battle is fought in chunks of rounds until the ranking
+     * is settled or {@code battle.max_rounds} is reached, instead of the requested number of rounds.
+     */
+    public CompletableFuture<Pair<List<RobotResults>, File>> submitBattle(BattleRequest battleRequest)
+    {
+        return CompletableFuture.supplyAsync(() -> ADAPTIVE_ROUNDS.get() ? runAdaptively(battleRequest) : runOnce(battleRequest), executor);
+    }
+
+    /**
+     * Only the recording of the first chunk is kept, recordings can't be joined. The results sidecar tells how many
+     * rounds the recording holds next to the rounds the results cover.
+     */
+    private Pair<List<RobotResults>, File> runAdaptively(BattleRequest battleRequest)
+    {
+        AdaptiveRounds adaptiveRounds = new AdaptiveRounds(CONFIDENCE_Z.get());
+        int maxRounds = Math.max(1, MAX_ROUNDS.get());
+        File recording = null;
+        while (true)
+        {
+            int chunkRounds = Math.min(Math.max(1, ROUND_CHUNK.get()), maxRounds - adaptiveRounds.getRounds());
+            Pair<List<RobotResults>, File> chunk = runOnce(BattleRequest.newBuilder(battleRequest).numRounds(chunkRounds).build());
+            if (chunk == null)
+            {
+                return null;
+            }
+            if (recording == null)
+            {
+                recording = chunk.getRight();
+            }
+            else
+            {
+                FileUtils.deleteQuietly(chunk.getRight());
+            }
+            adaptiveRounds.add(chunk.getLeft(), chunkRounds);
+            if (adaptiveRounds.getRounds() >= maxRounds || adaptiveRounds.isSettled())
+            {
+                logger.info("Ranking settled after {} rounds", adaptiveRounds.getRounds());
+                return Pair.of(adaptiveRounds.getResults(), recording);
+            }
+        }
+    }
+
+    /**
+     * With {@code battle.shards} above 1 the rounds are split over that many workers, each with its own seed derived
+     * from the battle's seed, and the results are merged. Only the recording of the first shard is kept.
+     */
+    private Pair<List<RobotResults>, File> runOnce(BattleRequest battleRequest)
+    {
+        int shards = Math.min(SHARDS.get(), battleRequest.getNumRounds());
+        if (battleRunner != null || shards <= 1)
+        {
+            return runShard(battleRequest);
+        }
+        long seed = battleRequest.getSeed() != null ? battleRequest.getSeed() : new Random().nextLong();
+        List<CompletableFuture<Pair<List<RobotResults>, File>>> shardBattles = new ArrayList<>();
+        for (int i = 0; i < shards; i++)
+        {
+            int rounds = battleRequest.getNumRounds() / shards + (i < battleRequest.getNumRounds() % shards ? 1 : 0);
+            BattleRequest shard = BattleRequest
+                    .newBuilder(battleRequest)
+                    .numRounds(rounds)
+                    .seed(seed * 31 + i)
+                    .build();
+            shardBattles.add(CompletableFuture.supplyAsync(() -> runShard(shard), shardExecutor));
+        }
+        //Wait for every shard, whatever happens to the others, so no recording is left behind
+        List<List<RobotResults>> results = new ArrayList<>();
+        List<File> recordings = new ArrayList<>();
+        RuntimeException failure = null;
+        for (CompletableFuture<Pair<List<RobotResults>, File>> shardBattle : shardBattles)
+        {
+            try
+            {
+                Pair<List<RobotResults>, File> pair = shardBattle.join();
+                if (pair == null)
+                {
+                    throw new IllegalStateException("No output from battle shard");
+                }
+                results.add(pair.getLeft());
+                recordings.add(pair.getRight());
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error("Battle shard failed", ex);
+                failure = ex;
+            }
+        }
+        if (failure != null)
+        {
+            recordings.forEach(FileUtils::deleteQuietly);
+            throw failure;
+        }
+        recordings.subList(1, recordings.size()).forEach(FileUtils::deleteQuietly);
+        return Pair.of(RobotResultsMerger.merge(results), recordings.get(0));
+    }
+
+    private Pair<List<RobotResults>, File> runShard(BattleRequest battleRequest)
+    {
+        if (battleRunner != null)
+        {
+            //The in process runner runs one battle at a time on the single pool thread
+            long sequence = getRobotsSequence();
+            Pair<List<RobotResults>, File> pair = battleRunner.runBattle(battleRequest, getChangedRobots(inProcessRobotsSequence));
+            if (pair != null)
+            {
+                inProcessRobotsSequence = sequence;
+                publishTelemetry(battleRunner.getTelemetry());
+            }
+            return pair;
+        }
+        WorkerReply reply = execute(worker -> WorkerCommand.battle(battleRequest, getChangedRobots(worker.getRobotsSequence())), true);
+        publishTelemetry(reply.getTelemetry());
+        return Pair.of(reply.getResults(), new File(reply.getRecordingPath()));
+    }
+
+    private void publishTelemetry(TelemetrySummary telemetry)
+    {
+        if (telemetry == null)
+        {
+            return;
+        }
+        TurnHistogram turnTimes = telemetry.getTurnTimes();
+        logger.info("Battle took {} turns, p50 {} us, p99 {} us, max {} us, skipped turns {}", turnTimes.getCount(),
+                TimeUnit.NANOSECONDS.toMicros(turnTimes.getQuantileNanos(0.5)),
+                TimeUnit.NANOSECONDS.toMicros(turnTimes.getQuantileNanos(0.99)),
+                TimeUnit.NANOSECONDS.toMicros(turnTimes.getMaxNanos()), telemetry.getSkippedTurns());
+        battleTurns.addAndGet(turnTimes.getCount());
+        skippedTurns.addAndGet(telemetry.getTotalSkippedTurns());
+        lastTelemetry = telemetry;
+    }
+
+    /**
+     * @return the turn times of the last battle, or its last shard, null before the first battle
+     */
+    public TurnHistogram getLastTurnTimes()
+    {
+        TelemetrySummary telemetry = lastTelemetry;
+        return telemetry == null ? null : telemetry.getTurnTimes();
+    }
+
+    /**
+     * @return turns run by all battles so far
+     */
+    public long getBattleTurns()
+    {
+        return battleTurns.get();
+    }
+
+    /**
+     * @return turns skipped by robots over all battles so far
+     */
+    public long getSkippedTurns()
+    {
+        return skippedTurns.get();
+    }
+
+    public CompletableFuture<List<RobotResults>> submitReplay(byte[] bytes)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            if (battleRunner != null)
+            {
+                try
+                {
+                    return battleRunner.replay(bytes);
+                }
+                catch (IOException ex)
+                {
+                    throw new CompletionException(ex);
+                }
+            }
+            return execute(worker -> WorkerCommand.replay(bytes), false).getResults();
+        }, executor);
+    }
+
+    /**
+     * Runs a battle with the default settings and waits for it to finish.
+     *
+     * @return the results and the recording, or null if the battle failed
+     */
+    public Pair<List<RobotResults>, File> runBattle()
+    {
+        try
+        {
+            return submitBattle(newBattleRequest().build()).join();
+        }
+        catch (CompletionException ex)
+        {
+            logger.error("Could not run battle", ex.getCause());
+            return null;
+        }
+    }
+
+    public List<RobotResults> replay(byte[] bytes) throws IOException
+    {
+        try
+        {
+            return submitReplay(bytes).join();
+        }
+        catch (CompletionException ex)
+        {
+            throw new IOException("Could not replay recording", ex.getCause());
+        }
+    }
+
+    private synchronized long getRobotsSequence()
+    {
+        return robotsSequence;
+    }
+
+    private synchronized ArrayList<String> getChangedRobots(long sinceSequence)
+    {
+        ArrayList<String> changedRobots = new ArrayList<>();
+        for (Map.Entry<String, Long> robotChange : robotChanges.entrySet())
+        {
+            if (robotChange.getValue() > sinceSequence)
+            {
+                changedRobots.add(robotChange.getKey());
+            }
+        }
+        return changedRobots;
+    }
+
+    /**
+     * @param refreshesRobots whether the command brings the worker's repository up to date
+     */
+    private WorkerReply execute(Function<BattleWorker, WorkerCommand> commandFactory, boolean refreshesRobots)
+    {
+        BattleWorker worker;
+        try
+        {
+            worker = idleWorkers.take();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        }
+        try
+        {
+            long sequence = getRobotsSequence();
+            WorkerReply reply = worker.execute(commandFactory.apply(worker));
+            if (reply.getError() != null)
+            {
+                throw new IllegalStateException("Battle worker failed: " + reply.getError());
+            }
+            if (refreshesRobots)
+            {
+                worker.setRobotsSequence(sequence);
+            }
+            return reply;
+        }
+        catch (IOException ex)
+        {
+            //The worker is dead, have a fresh one warmed up before it is used again
+            warmUp(worker);
+            worker = null;
+            throw new CompletionException(ex);
+        }
+        finally
+        {
+            if (worker != null)
+            {
+                idleWorkers.add(worker);
+            }
+        }
+    }
+
+    /**
+     * Starts the worker's process and loads its robot repository in the background, then makes it available for
+     * battles. Workers are warmed up in parallel.
+     */
+    private void warmUp(BattleWorker worker)
+    {
+        warmUpExecutor.execute(() ->
+        {
+            try
+            {
+                long sequence = getRobotsSequence();
+                WorkerReply reply = worker.execute(WorkerCommand.warmUp());
+                if (reply.getError() != null)
+                {
+                    logger.error("Could not warm up battle worker: {}", reply.getError());
+                }
+                else
+                {
+                    worker.setRobotsSequence(sequence);
+                }
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not warm up battle worker", ex);
+            }
+            finally
+            {
+                idleWorkers.add(worker);
+            }
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package com.mirado.robocode.engine;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+/**
+ * A Clojure runtime living in its own class loader, so clojure robots can be AOT compiled without forking a JVM and
+ * bootstrapping Clojure for every robot. Does the same as {@code clojure.lang.Compile}, through reflection since none
+ * of the Clojure classes are visible outside the class loader.
+ */
+class ClojureRuntime
+{
+    private final ClassLoader classLoader;
+    private final Object compileVar;
+    private final Object compilePathVar;
+    private final Object warnOnReflectionVar;
+    private final Method compile;
+    private final Method map;
+    private final Method internSymbol;
+    private final Method pushThreadBindings;
+    private final Method popThreadBindings;
+
+    ClojureRuntime(List<File> classPath) throws ReflectiveOperationException, MalformedURLException
+    {
+        URL[] urls = new URL[classPath.size()];
+        for (int i = 0; i < urls.length; i++)
+        {
+            urls[i] = classPath.get(i).toURI().toURL();
+        }
+        //Skip the application class path so only the clojure jar given here is used
+        classLoader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(classLoader);
+        try
+        {
+            Class<?> rt = Class.forName("clojure.lang.RT", true, classLoader);
+            Class<?> var = classLoader.loadClass("clojure.lang.Var");
+            Method getVar = rt.getMethod("var", String.class, String.class);
+            compileVar = getVar.invoke(null, "clojure.core", "compile");
+            compilePathVar = getVar.invoke(null, "clojure.core", "*compile-path*");
+            warnOnReflectionVar = getVar.invoke(null, "clojure.core", "*warn-on-reflection*");
+            compile = var.getMethod("invoke", Object.class);
+            map = rt.getMethod("map", Object[].class);
+            internSymbol = classLoader.loadClass("clojure.lang.Symbol").getMethod("intern", String.class);
+            pushThreadBindings = var.getMethod("pushThreadBindings", classLoader.loadClass("clojure.lang.Associative"));
+            popThreadBindings = var.getMethod("popThreadBindings");
+        }
+        finally
+        {
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * AOT compiles a namespace, writing the classes to the compile path.
+     *
+     * @throws InvocationTargetException with the Clojure compiler exception as cause if the namespace didn't compile
+     */
+    synchronized void compile(String namespace, File compilePath) throws ReflectiveOperationException
+    {
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(classLoader);
+        try
+        {
+            Object bindings = map.invoke(null, (Object) new Object[]{compilePathVar, compilePath.getAbsolutePath(), warnOnReflectionVar, false});
+            pushThreadBindings.invoke(null, bindings);
+            try
+            {
+                compile.invoke(compileVar, internSymbol.invoke(null, namespace));
+            }
+            finally
+            {
+                popThreadBindings.invoke(null);
+            }
+        }
+        finally
+        {
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+        }
+    }
+}
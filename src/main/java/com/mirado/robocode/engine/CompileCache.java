@@ -0,0 +1,91 @@
+package com.mirado.robocode.engine;
+
+import com.mirado.robocode.archaius.Config;
+import com.mirado.robocode.domain.RobotSpec;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Keeps the class files of every compiled robot on disk, keyed by everything that goes into compiling it, so an
+ * unchanged robot is copied into the robots directory instead of being compiled again.
+ */
+class CompileCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(CompileCache.class);
+    private final File directory;
+    private final File robotsDirectory;
+
+    CompileCache(File directory, File robotsDirectory)
+    {
+        this.directory = directory;
+        this.robotsDirectory = robotsDirectory;
+    }
+
+    static String getKey(RobotSpec robotSpec, String compilerOptions)
+    {
+        String key = robotSpec.getSourceLanguage() + "\n"
+                + compilerOptions + "\n"
+                + Config.getRoboCodeVersion() + "\n"
+                + robotSpec.getPackageName() + "." + robotSpec.getClassName() + "\n"
+                + robotSpec.getSource();
+        return DigestUtils.sha256Hex(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Copies the cached classes into the robots directory.
+     *
+     * @return false if there is nothing cached for the key
+     */
+    boolean restore(String key) throws IOException
+    {
+        File entry = new File(directory, key);
+        if (!entry.isDirectory())
+        {
+            return false;
+        }
+        //Don't keep the old dates, clojure loads the source instead of the classes if the source is newer
+        FileUtils.copyDirectory(entry, robotsDirectory, false);
+        logger.info("Restored {} from compile cache", key);
+        return true;
+    }
+
+    void store(String key, List<File> classFiles)
+    {
+        File entry = new File(directory, key);
+        if (entry.isDirectory())
+        {
+            return;
+        }
+        Path temp = null;
+        try
+        {
+            FileUtils.forceMkdir(directory);
+            temp = Files.createTempDirectory(directory.toPath(), key);
+            for (File classFile : classFiles)
+            {
+                Path target = temp.resolve(robotsDirectory.getAbsoluteFile().toPath().relativize(classFile.getAbsoluteFile().toPath()));
+                Files.createDirectories(target.getParent());
+                Files.copy(classFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temp, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not store {} in compile cache", key, ex);
+            if (temp != null)
+            {
+                FileUtils.deleteQuietly(temp.toFile());
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.mirado.robocode.engine;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mirado.robocode.archaius.Config;
+import com.netflix.archaius.api.Property;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fans the turn frames of running battles out to live viewers. A viewer picks a frame rate, which is rounded to a
+ * stride of a power of two frames, and all viewers of a stride share one encoding of each frame. Frames are JSON,
+ * a keyframe with the robot names and their values followed by frames holding the difference to the frame before
+ * at that stride, so the cost of a frame grows with the number of strides in use rather than with the viewers.
+ * <p>
+ * The battles only queue the frames. A dispatcher thread hands each viewer with queued frames to a writer thread of
+ * its own, which writes them out as server-sent events, so neither a battle, a request thread nor the other viewers
+ * wait on a viewer's connection. A viewer too slow to keep up has its queued frames dropped and continues from the
+ * next keyframe, a viewer whose connection fails or whose write takes longer than {@code stream.write_timeout_seconds}
+ * is removed.
+ */
+public class LiveBattleHub
+{
+    private static final Logger logger = LoggerFactory.getLogger(LiveBattleHub.class);
+    private static final Property<Integer> KEYFRAME_INTERVAL = Config.getPropertyFactory().getProperty("stream.keyframe_interval").asInteger(60);
+    private static final Property<Integer> VIEWER_BUFFER = Config.getPropertyFactory().getProperty("stream.viewer_buffer").asInteger(64);
+    private static final Property<Integer> WRITE_TIMEOUT_SECONDS = Config.getPropertyFactory().getProperty("stream.write_timeout_seconds").asInteger(10);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int STRIDES = 6;
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(15);
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final List<List<Viewer>> viewers = new ArrayList<>();
+    private final Map<Integer, Source> sources = new HashMap<>();
+    //Every viewer, for the sender to go through without the lock
+    private volatile Viewer[] allViewers = new Viewer[0];
+    private final Thread sender;
+    //A thread per viewer being written to, a stalled viewer only holds up its own
+    private final ExecutorService writers = Executors.newCachedThreadPool(runnable ->
+    {
+        Thread thread = new Thread(runnable, "live-viewer-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LiveBattleHub()
+    {
+        for (int i = 0; i < STRIDES; i++)
+        {
+            viewers.add(new ArrayList<>());
+        }
+        sender = new Thread(this::send, "live-viewers");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * @param fps    frames per second the viewer wants, at most {@code stream.max_fps}
+     * @param output where the frames are written until it is closed or a write fails
+     */
+    public synchronized void subscribe(int fps, EventOutput output)
+    {
+        int stride = Math.max(1, TurnFrameListener.MAX_FPS.get() / Math.max(1, fps));
+        int level = Math.min(STRIDES - 1, 31 - Integer.numberOfLeadingZeros(stride));
+        Viewer viewer = new Viewer(level, VIEWER_BUFFER.get(), output);
+        viewers.get(level).add(viewer);
+        allViewers = concat(viewers);
+        requestKeyframes(level);
+    }
+
+    private synchronized void unsubscribe(Viewer viewer)
+    {
+        if (viewers.get(viewer.level).remove(viewer))
+        {
+            allViewers = concat(viewers);
+        }
+    }
+
+    public int getViewers()
+    {
+        return allViewers.length;
+    }
+
+    /**
+     * @return how many times a viewer fell behind and lost its queued frames
+     */
+    public long getDropped()
+    {
+        long dropped = 0;
+        for (Viewer viewer : allViewers)
+        {
+            dropped += viewer.dropped;
+        }
+        return dropped;
+    }
+
+    private static Viewer[] concat(List<List<Viewer>> viewers)
+    {
+        return viewers.stream().flatMap(List::stream).toArray(Viewer[]::new);
+    }
+
+    /**
+     * @param sourceId the battle worker the frame comes from, each is diffed separately
+     */
+    synchronized void publish(int sourceId, TurnFrame frame)
+    {
+        Source source = sources.computeIfAbsent(sourceId, id -> new Source());
+        long count = source.frames++;
+        for (int level = 0; level < STRIDES; level++)
+        {
+            List<Viewer> levelViewers = viewers.get(level);
+            if (levelViewers.isEmpty())
+            {
+                //Nobody to keep a base for, whoever subscribes starts from a keyframe
+                source.bases[level] = null;
+                continue;
+            }
+            if ((count & ((1 << level) - 1)) != 0)
+            {
+                continue;
+            }
+            String encoded = encode(sourceId, source, level, frame);
+            for (Viewer viewer : levelViewers)
+            {
+                if (!viewer.frames.offer(encoded))
+                {
+                    viewer.frames.clear();
+                    viewer.dropped++;
+                    requestKeyframes(level);
+                }
+            }
+        }
+        LockSupport.unpark(sender);
+    }
+
+    private void send()
+    {
+        while (true)
+        {
+            long now = System.nanoTime();
+            long writeTimeoutNanos = TimeUnit.SECONDS.toNanos(WRITE_TIMEOUT_SECONDS.get());
+            for (Viewer viewer : allViewers)
+            {
+                if (viewer.isStalled(now, writeTimeoutNanos))
+                {
+                    logger.info("Live viewer stopped reading, removing it");
+                    unsubscribe(viewer);
+                    viewer.abort();
+                }
+                else if (viewer.hasWork(now) && viewer.scheduled.compareAndSet(false, true))
+                {
+                    writers.execute(() -> write(viewer));
+                }
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+    }
+
+    private void write(Viewer viewer)
+    {
+        viewer.startWrite();
+        try
+        {
+            viewer.send();
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            logger.debug("Live viewer went away", ex);
+            unsubscribe(viewer);
+            viewer.close();
+        }
+        finally
+        {
+            viewer.endWrite();
+            viewer.scheduled.set(false);
+            if (!viewer.frames.isEmpty())
+            {
+                //Frames queued after the last poll, the dispatcher skipped the viewer while it was being written
+                LockSupport.unpark(sender);
+            }
+        }
+    }
+
+    private void requestKeyframes(int level)
+    {
+        for (Source source : sources.values())
+        {
+            source.bases[level] = null;
+        }
+    }
+
+    private static String encode(int sourceId, Source source, int level, TurnFrame frame)
+    {
+        TurnFrame base = source.bases[level];
+        boolean keyframe = base == null
+                || base.getRound() != frame.getRound()
+                || !Arrays.equals(base.getNames(), frame.getNames())
+                || source.sinceKeyframe[level] >= KEYFRAME_INTERVAL.get();
+        StringBuilder json = new StringBuilder(32 + frame.getValues().length * 4);
+        json.append("{\"source\":").append(sourceId)
+                .append(",\"round\":").append(frame.getRound())
+                .append(",\"turn\":").append(frame.getTurn())
+                .append(",\"key\":").append(keyframe);
+        if (keyframe)
+        {
+            json.append(",\"robots\":").append(toJson(frame.getNames()));
+            source.sinceKeyframe[level] = 0;
+        }
+        else
+        {
+            source.sinceKeyframe[level]++;
+        }
+        json.append(",\"values\":[");
+        int[] values = frame.getValues();
+        for (int i = 0; i < values.length; i++)
+        {
+            if (i > 0)
+            {
+                json.append(',');
+            }
+            json.append(keyframe ? values[i] : values[i] - base.getValues()[i]);
+        }
+        source.bases[level] = frame;
+        return json.append("]}").toString();
+    }
+
+    private static String toJson(String[] names)
+    {
+        try
+        {
+            return OBJECT_MAPPER.writeValueAsString(names);
+        }
+        catch (JsonProcessingException ex)
+        {
+            logger.error("Could not encode robot names", ex);
+            return "[]";
+        }
+    }
+
+    private static final class Source
+    {
+        private final TurnFrame[] bases = new TurnFrame[STRIDES];
+        private final int[] sinceKeyframe = new int[STRIDES];
+        private long frames;
+    }
+
+    private static final class Viewer
+    {
+        private final int level;
+        private final BlockingQueue<String> frames;
+        private final EventOutput output;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long dropped;
+        private volatile long lastSent = System.nanoTime();
+        //Set while a write is in progress, guarded by this
+        private Thread writer;
+        private long writeStarted;
+
+        private Viewer(int level, int buffer, EventOutput output)
+        {
+            this.level = level;
+            this.output = output;
+            frames = new ArrayBlockingQueue<>(buffer);
+        }
+
+        /**
+         * @return whether there are frames to write, or a keep-alive comment is due so a viewer that went away is
+         * noticed while no battle is running
+         */
+        private boolean hasWork(long now)
+        {
+            return !frames.isEmpty() || now - lastSent > KEEP_ALIVE_NANOS;
+        }
+
+        private synchronized boolean isStalled(long now, long writeTimeoutNanos)
+        {
+            return writer != null && now - writeStarted > writeTimeoutNanos;
+        }
+
+        private synchronized void startWrite()
+        {
+            writeStarted = System.nanoTime();
+            writer = Thread.currentThread();
+        }
+
+        private synchronized void endWrite()
+        {
+            writer = null;
+            //An abort that came as the write finished must not hit the thread's next viewer
+            Thread.interrupted();
+        }
+
+        /**
+         * Interrupts a blocked write, the writer then closes the stream.
+         */
+        private synchronized void abort()
+        {
+            if (writer != null)
+            {
+                writer.interrupt();
+            }
+        }
+
+        private void send() throws IOException
+        {
+            if (output.isClosed())
+            {
+                throw new IOException("Live viewer closed the stream");
+            }
+            boolean sent = false;
+            String frame;
+            while ((frame = frames.poll()) != null)
+            {
+                output.write(new OutboundEvent.Builder().name("frame").data(String.class, frame).build());
+                sent = true;
+            }
+            long now = System.nanoTime();
+            if (sent)
+            {
+                lastSent = now;
+            }
+            else if (now - lastSent > KEEP_ALIVE_NANOS)
+            {
+                output.write(new OutboundEvent.Builder().comment("").build());
+                lastSent = now;
+            }
+        }
+
+        private void close()
+        {
+            try
+            {
+                output.close();
+            }
+            catch (IOException ex)
+            {
+                logger.debug("Could not close live viewer", ex);
+            }
+        }
+    }
+}
@@ -21,12 +21,6 @@ import robocode.control.events.TurnStartedEvent;
 public class LoggingBattleListener implements IBattleListener
 {
     private static final Logger logger = LoggerFactory.getLogger(LoggingBattleListener.class);
-    private BattleCompletedEvent battleCompletedEvent;
-
-    public BattleCompletedEvent getBattleCompletedEvent()
-    {
-        return battleCompletedEvent;
-    }
 
     @Override
     public void onBattleStarted(BattleStartedEvent event)
@@ -44,7 +38,6 @@ public class LoggingBattleListener implements IBattleListener
     public void onBattleCompleted(BattleCompletedEvent event)
     {
         logger.info("Battle completed");
-        battleCompletedEvent = event;
     }
 
     @Override
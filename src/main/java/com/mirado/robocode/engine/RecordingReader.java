@@ -0,0 +1,51 @@
+package com.mirado.robocode.engine;
+
+import robocode.control.RobotResults;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the results out of a BINARY_ZIP recording without replaying it. The record info with the results is the
+ * first object in the recording, so only the start of the stream is ever read.
+ */
+public class RecordingReader
+{
+    private RecordingReader()
+    {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<RobotResults> readResults(InputStream inputStream) throws IOException
+    {
+        ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(inputStream));
+        if (zipInputStream.getNextEntry() == null)
+        {
+            throw new IOException("Recording is empty");
+        }
+        try
+        {
+            ObjectInputStream objectInputStream = new ObjectInputStream(zipInputStream);
+            Object recordInfo = objectInputStream.readObject();
+            //BattleRecordInfo is package private in robocode so have to use reflection
+            Field resultsField = recordInfo.getClass().getDeclaredField("results");
+            resultsField.setAccessible(true);
+            List<RobotResults> results = (List<RobotResults>) resultsField.get(recordInfo);
+            if (results == null)
+            {
+                throw new IOException("Recording has no results");
+            }
+            return new ArrayList<>(results);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new IOException("Could not read recording", ex);
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.mirado.robocode.engine;
 
 import com.mirado.robocode.archaius.Config;
+import com.mirado.robocode.domain.RobotSpec;
 import com.mirado.robocode.domain.SourceLanguage;
 import com.mirado.robocode.services.NotificationService;
+import com.netflix.archaius.api.Property;
 import net.sf.robocode.io.FileUtil;
 import net.sf.robocode.ui.editor.CompilerProperties;
 import org.apache.commons.io.FileUtils;
@@ -11,9 +13,41 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static net.sf.robocode.io.Logger.logError;
 
@@ -23,8 +57,23 @@ public class RobotCompiler
     private static final String COMPILER_CLASSPATH = getJavaLib() + File.pathSeparator
             + FileUtil.getCwd().getAbsolutePath() + "/libs" + File.separator + "robocode.jar"
             + File.pathSeparator + FileUtil.quoteFileName(FileUtil.getRobotsDir().toString());
+    private static final List<String> IN_PROCESS_COMPILER_OPTIONS = Arrays.asList("-deprecation", "-g", "-source", "8", "-encoding", "UTF-8");
+    private static final Property<Boolean> IN_PROCESS = Config.getPropertyFactory().getProperty("compiler.in_process").asBoolean(true);
+    private static final String FORKED_COMPILER_OPTIONS = "-deprecation -g -source 8 -encoding UTF-8";
     private static boolean compilerTested = false;
+    private static String compilerVersion;
     private final NotificationService notificationService;
+    private final JavaCompiler javaCompiler = ToolProvider.getSystemJavaCompiler();
+    private final Object javaCompilerLock = new Object();
+    private StandardJavaFileManager standardFileManager;
+    private final CompileCache compileCache = new CompileCache(new File("cache/classes"), FileUtil.getRobotsDir());
+    private final ExecutorService compileExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable ->
+    {
+        Thread thread = new Thread(runnable, "compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ClojureRuntime clojureRuntime;
 
     @Inject
     public RobotCompiler(NotificationService notificationService)
@@ -48,14 +97,17 @@ public class RobotCompiler
         return FileUtil.quoteFileName(javalib);
     }
 
-    private static CompilerProperties getCompilerProperties(SourceLanguage language)
+    /**
+     * @param outputDirectory where the compiler writes the classes
+     */
+    private static CompilerProperties getCompilerProperties(SourceLanguage language, File outputDirectory)
     {
         CompilerProperties compilerProperties = new CompilerProperties();
         compilerProperties.setRobocodeVersion(Config.getRoboCodeVersion());
         if (language == SourceLanguage.JAVA)
         {
             String compilerBinary = "javac";
-            String compilerOptions = "-deprecation -g -source 8 -encoding UTF-8";
+            String compilerOptions = FORKED_COMPILER_OPTIONS + " -d " + outputDirectory.getAbsolutePath();
 
             if (!testCompiler(compilerBinary))
             {
@@ -68,10 +120,12 @@ public class RobotCompiler
         }
         else if (language == SourceLanguage.CLOJURE)
         {
-            String classPath = COMPILER_CLASSPATH + File.pathSeparator + FileUtil.getCwd().getAbsolutePath() + "/libs" + File.separator + "clojure-1.8.jar";
+            //Clojure wants the compile path on the class path as well
+            String classPath = COMPILER_CLASSPATH + File.pathSeparator + FileUtil.getCwd().getAbsolutePath() + "/libs" + File.separator + "clojure-1.8.jar"
+                    + File.pathSeparator + outputDirectory.getAbsolutePath();
             compilerProperties.setCompilerBinary("java");
             compilerProperties.setCompilerClasspath("-cp " + classPath);
-            compilerProperties.setCompilerOptions("-Dclojure.compile.path=classes clojure.lang.Compile");
+            compilerProperties.setCompilerOptions("-Dclojure.compile.path=" + outputDirectory.getAbsolutePath() + " clojure.lang.Compile");
             return compilerProperties;
         }
         else
@@ -87,7 +141,7 @@ public class RobotCompiler
      *
      * @return true if the compiler was found and did compile the test file; false otherwise.
      */
-    private static boolean testCompiler(String filepath)
+    private static synchronized boolean testCompiler(String filepath)
     {
         if (compilerTested)
         {
@@ -112,6 +166,7 @@ public class RobotCompiler
             p.waitFor();
 
             result = (p.exitValue() == 0);
+            compilerVersion = output.trim();
 
         }
         catch (IOException e)
@@ -130,6 +185,14 @@ public class RobotCompiler
         return result;
     }
 
+    /**
+     * @return the version line of the javac on the path, or just javac if it can't be run
+     */
+    private static synchronized String getForkedJavacVersion()
+    {
+        return testCompiler("javac") ? compilerVersion : "javac";
+    }
+
     private String getCompileFileName(String fileName, SourceLanguage language)
     {
         if (language == SourceLanguage.JAVA)
@@ -150,9 +213,9 @@ public class RobotCompiler
         }
     }
 
-    private void compileFile(String fileName, File pwd, SourceLanguage language) throws InterruptedException, IOException
+    private boolean compileFile(String fileName, File pwd, SourceLanguage language, File outputDirectory) throws InterruptedException, IOException
     {
-        CompilerProperties compilerProperties = getCompilerProperties(language);
+        CompilerProperties compilerProperties = getCompilerProperties(language, outputDirectory);
         fileName = FileUtil.quoteFileName(fileName);
 
         StringBuffer command = new StringBuffer(compilerProperties.getCompilerBinary())
@@ -176,25 +239,455 @@ public class RobotCompiler
         if (p.exitValue() == 0)
         {
             logger.info("Compiled successfully");
+            return true;
         }
         else
         {
             notificationService.notify("Robot " + fileName + " didn't compile! Output: " + output);
             logger.error("Compile Failed: {}", p.exitValue());
+            return false;
+        }
+    }
+
+    /**
+     * Compiles java robots in a single invocation of the compiler of the running JDK, reading the sources from memory
+     * and writing the classes straight into the robots directory. Errors in one robot fail the whole invocation, so
+     * the robots without errors are compiled again without it.
+     *
+     * @return the class files written for each robot that compiled
+     */
+    private Map<RobotSpec, List<File>> compileInProcess(List<RobotSpec> robotSpecs) throws IOException
+    {
+        Map<RobotSpec, List<File>> compiled = new HashMap<>();
+        List<RobotSpec> remaining = new ArrayList<>(robotSpecs);
+        while (!remaining.isEmpty())
+        {
+            Set<RobotSpec> failed = new HashSet<>();
+            Map<RobotSpec, List<File>> outputs = runJavaCompiler(remaining, failed);
+            if (outputs != null)
+            {
+                compiled.putAll(outputs);
+                break;
+            }
+            if (failed.isEmpty())
+            {
+                //Errors that can't be tied to a robot, try them one at a time
+                if (remaining.size() > 1)
+                {
+                    for (RobotSpec robotSpec : remaining)
+                    {
+                        Map<RobotSpec, List<File>> single = runJavaCompiler(Collections.singletonList(robotSpec), failed);
+                        if (single != null)
+                        {
+                            compiled.putAll(single);
+                        }
+                    }
+                }
+                break;
+            }
+            remaining.removeAll(failed);
+        }
+        return compiled;
+    }
+
+    /**
+     * @param failed gets the robots with errors
+     *
+     * @return the class files written for each robot, or null if the compile failed
+     */
+    private Map<RobotSpec, List<File>> runJavaCompiler(List<RobotSpec> robotSpecs, Set<RobotSpec> failed) throws IOException
+    {
+        List<SourceFile> sourceFiles = robotSpecs.stream().map(SourceFile::new).collect(Collectors.toList());
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        boolean success;
+        Map<RobotSpec, List<File>> outputs;
+        synchronized (javaCompilerLock)
+        {
+            RobotsDirectoryFileManager fileManager = new RobotsDirectoryFileManager(getStandardFileManager());
+            JavaCompiler.CompilationTask task = javaCompiler.getTask(null, fileManager, diagnostics, IN_PROCESS_COMPILER_OPTIONS,
+                    null, sourceFiles);
+            success = task.call();
+            outputs = fileManager.getOutputs();
+        }
+        for (SourceFile sourceFile : sourceFiles)
+        {
+            String output = diagnostics.getDiagnostics()
+                    .stream()
+                    .filter(diagnostic -> diagnostic.getSource() == sourceFile)
+                    .map(diagnostic -> diagnostic.getKind() + " line " + diagnostic.getLineNumber() + ": " + diagnostic.getMessage(Locale.ENGLISH))
+                    .collect(Collectors.joining("\n"));
+            logger.info("Compiler output for {}: {}", sourceFile.className, output);
+            boolean hasErrors = diagnostics.getDiagnostics()
+                    .stream()
+                    .anyMatch(diagnostic -> diagnostic.getSource() == sourceFile && diagnostic.getKind() == Diagnostic.Kind.ERROR);
+            if (hasErrors)
+            {
+                failed.add(sourceFile.robotSpec);
+                notificationService.notify("Robot " + sourceFile.className + " didn't compile! Output: " + output);
+                logger.error("Compile Failed: {}", sourceFile.className);
+            }
+        }
+        if (!success)
+        {
+            return null;
+        }
+        logger.info("Compiled successfully: {}", outputs);
+        return outputs;
+    }
+
+    /**
+     * The standard file manager caches opened jars, so keep the same one with the classpath parsed once.
+     */
+    private StandardJavaFileManager getStandardFileManager() throws IOException
+    {
+        if (standardFileManager == null)
+        {
+            standardFileManager = javaCompiler.getStandardFileManager(null, Locale.ENGLISH, StandardCharsets.UTF_8);
+            standardFileManager.setLocation(StandardLocation.CLASS_PATH, getCompilerClassPath());
+            standardFileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(FileUtil.getRobotsDir()));
+        }
+        return standardFileManager;
+    }
+
+    private static List<File> getCompilerClassPath()
+    {
+        List<File> classPath = new ArrayList<>();
+        for (String entry : COMPILER_CLASSPATH.split(File.pathSeparator))
+        {
+            File file = new File(entry.replace("\"", ""));
+            if (file.exists())
+            {
+                classPath.add(file);
+            }
+        }
+        return classPath;
+    }
+
+    /**
+     * AOT compiles a clojure robot in the shared {@link ClojureRuntime}, writing the classes straight into the robots
+     * directory.
+     *
+     * @return false if the robot didn't compile
+     */
+    private boolean compileClojureInProcess(File file) throws ReflectiveOperationException, MalformedURLException
+    {
+        String baseDirName = FileUtil.getRobotsDir().getAbsolutePath();
+        String namespace = getCompileFileName(file.toString().substring(baseDirName.length() + 1), SourceLanguage.CLOJURE);
+        try
+        {
+            getClojureRuntime().compile(namespace, FileUtil.getRobotsDir());
+            logger.info("Compiled successfully");
+            return true;
+        }
+        catch (InvocationTargetException ex)
+        {
+            String output = String.valueOf(ex.getCause());
+            notificationService.notify("Robot " + namespace + " didn't compile! Output: " + output);
+            logger.error("Compile Failed: {}", output);
+            return false;
+        }
+    }
+
+    private synchronized ClojureRuntime getClojureRuntime() throws ReflectiveOperationException, MalformedURLException
+    {
+        if (clojureRuntime == null)
+        {
+            List<File> classPath = getCompilerClassPath();
+            classPath.add(new File(FileUtil.getCwd().getAbsolutePath() + "/libs", "clojure-1.8.jar"));
+            clojureRuntime = new ClojureRuntime(classPath);
+        }
+        return clojureRuntime;
+    }
+
+    /**
+     * Compiles a robot whose source has been written to the file, or restores its classes from the compile cache if
+     * the exact same robot has been compiled before.
+     *
+     * @return false if the robot didn't compile
+     */
+    public boolean compile(File file, RobotSpec robotSpec) throws InterruptedException, IOException
+    {
+        return compileAll(Collections.singletonMap(file, robotSpec)).get(file);
+    }
+
+    /**
+     * Compiles robots whose sources have been written to the files. Java robots are compiled together in one compiler
+     * invocation, the others in parallel. Robots compiled before are restored from the compile cache.
+     *
+     * @return whether each file compiled
+     */
+    public Map<File, Boolean> compileAll(Map<File, RobotSpec> robots) throws InterruptedException, IOException
+    {
+        Map<File, Boolean> results = new LinkedHashMap<>();
+        Map<File, RobotSpec> toCompile = new LinkedHashMap<>();
+        for (Map.Entry<File, RobotSpec> entry : robots.entrySet())
+        {
+            if (restoreFromCache(entry.getValue()))
+            {
+                results.put(entry.getKey(), true);
+            }
+            else
+            {
+                toCompile.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (javaCompiler != null && IN_PROCESS.get())
+        {
+            List<RobotSpec> javaRobots = toCompile.values()
+                    .stream()
+                    .filter(robotSpec -> robotSpec.getSourceLanguage() == SourceLanguage.JAVA)
+                    .collect(Collectors.toList());
+            if (!javaRobots.isEmpty())
+            {
+                try
+                {
+                    Map<RobotSpec, List<File>> compiled = compileInProcess(javaRobots);
+                    for (Map.Entry<File, RobotSpec> entry : new ArrayList<>(toCompile.entrySet()))
+                    {
+                        if (entry.getValue().getSourceLanguage() == SourceLanguage.JAVA)
+                        {
+                            List<File> classFiles = compiled.get(entry.getValue());
+                            results.put(entry.getKey(), storeInCache(entry.getValue(), false, classFiles));
+                            toCompile.remove(entry.getKey());
+                        }
+                    }
+                }
+                catch (RuntimeException | IOException ex)
+                {
+                    logger.error("Could not compile in process, falling back to javac", ex);
+                }
+            }
+        }
+        Map<File, Future<Boolean>> futures = new LinkedHashMap<>();
+        for (Map.Entry<File, RobotSpec> entry : toCompile.entrySet())
+        {
+            futures.put(entry.getKey(), compileExecutor.submit(() -> compileOne(entry.getKey(), entry.getValue())));
+        }
+        for (Map.Entry<File, Future<Boolean>> entry : futures.entrySet())
+        {
+            try
+            {
+                results.put(entry.getKey(), entry.getValue().get());
+            }
+            catch (ExecutionException ex)
+            {
+                logger.error("Could not compile {}", entry.getKey(), ex.getCause());
+                results.put(entry.getKey(), false);
+            }
         }
+        return results;
     }
 
-    public void compile(File file, SourceLanguage language) throws InterruptedException, IOException
+    private boolean compileOne(File file, RobotSpec robotSpec) throws InterruptedException, IOException
+    {
+        long started = System.currentTimeMillis();
+        if (robotSpec.getSourceLanguage() == SourceLanguage.JAVA && javaCompiler != null && IN_PROCESS.get())
+        {
+            try
+            {
+                return storeInCache(robotSpec, false, compileInProcess(Collections.singletonList(robotSpec)).get(robotSpec));
+            }
+            catch (RuntimeException | IOException ex)
+            {
+                logger.error("Could not compile in process, falling back to javac", ex);
+            }
+        }
+        else if (robotSpec.getSourceLanguage() == SourceLanguage.CLOJURE && IN_PROCESS.get())
+        {
+            try
+            {
+                return storeInCache(robotSpec, false, compileClojureInProcess(file) ? findClassFiles(robotSpec, started) : null);
+            }
+            catch (ReflectiveOperationException | MalformedURLException | RuntimeException ex)
+            {
+                logger.error("Could not compile in process, falling back to clojure.lang.Compile", ex);
+            }
+        }
+        return storeInCache(robotSpec, true, compileForked(file, robotSpec));
+    }
+
+    /**
+     * Looks for the classes of the compiler the robot would be compiled with, then, for java, for the classes of the
+     * forked javac that the in process compiler falls back to when it fails.
+     *
+     * @return false if the robot isn't in the cache
+     */
+    private boolean restoreFromCache(RobotSpec robotSpec) throws IOException
+    {
+        boolean forked = isForked(robotSpec.getSourceLanguage());
+        if (compileCache.restore(getCacheKey(robotSpec, forked)))
+        {
+            return true;
+        }
+        return !forked
+                && robotSpec.getSourceLanguage() == SourceLanguage.JAVA
+                && compileCache.restore(getCacheKey(robotSpec, true));
+    }
+
+    /**
+     * @param forked whether the classes come from a forked compiler
+     *
+     * @return whether the robot compiled
+     */
+    private boolean storeInCache(RobotSpec robotSpec, boolean forked, List<File> classFiles)
+    {
+        if (classFiles != null && !classFiles.isEmpty())
+        {
+            compileCache.store(getCacheKey(robotSpec, forked), classFiles);
+        }
+        return classFiles != null;
+    }
+
+    /**
+     * Keys the cache by the compiler that produces the classes and its flags, classes from the forked javac are never
+     * restored in place of the in process compiler's and the other way around.
+     */
+    private String getCacheKey(RobotSpec robotSpec, boolean forked)
+    {
+        if (robotSpec.getSourceLanguage() != SourceLanguage.JAVA)
+        {
+            return CompileCache.getKey(robotSpec, "clojure-1.8");
+        }
+        if (!forked)
+        {
+            return CompileCache.getKey(robotSpec, String.join(" ", IN_PROCESS_COMPILER_OPTIONS));
+        }
+        return CompileCache.getKey(robotSpec, getForkedJavacVersion() + " " + FORKED_COMPILER_OPTIONS);
+    }
+
+    /**
+     * @return whether robots in the language are compiled by a forked compiler
+     */
+    private boolean isForked(SourceLanguage language)
+    {
+        if (!IN_PROCESS.get())
+        {
+            return true;
+        }
+        return language == SourceLanguage.JAVA && javaCompiler == null;
+    }
+
+    /**
+     * Finds the classes written for a robot by a compiler that doesn't tell, that is the robot class itself, its inner
+     * classes and for clojure the namespace classes.
+     */
+    private static List<File> findClassFiles(RobotSpec robotSpec, long since)
+    {
+        File packageDirectory = new File(FileUtil.getRobotsDir(), robotSpec.getPackageName().replace('.', File.separatorChar));
+        String className = robotSpec.getClassName();
+        File[] files = packageDirectory.listFiles((dir, name) -> name.endsWith(".class")
+                && (name.equals(className + ".class") || name.startsWith(className + "$") || name.startsWith(className + "__init")));
+        List<File> classFiles = new ArrayList<>();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                //File systems may only keep the modification time in seconds
+                if (file.lastModified() >= since - 1000)
+                {
+                    classFiles.add(file);
+                }
+            }
+        }
+        return classFiles;
+    }
+
+    /**
+     * Compiles a robot with a forked compiler writing into a directory of its own. Robots compiled in parallel can't
+     * move or wipe each other's classes, and everything in the directory belongs to the robot, including any extra
+     * top level classes in its source. Only that directory is copied into the robots directory.
+     *
+     * @return the class files written, or null if the robot didn't compile
+     */
+    private List<File> compileForked(File file, RobotSpec robotSpec) throws InterruptedException, IOException
     {
         final String baseDirName = FileUtil.getRobotsDir().getAbsolutePath();
         File baseDir = new File(baseDirName);
         String fileName = file.toString().substring(baseDirName.length() + 1);
-        compileFile(fileName, baseDir, language);
-        if (language == SourceLanguage.CLOJURE)
+        File outputDirectory = Files.createTempDirectory("robot-classes").toFile();
+        try
+        {
+            if (!compileFile(fileName, baseDir, robotSpec.getSourceLanguage(), outputDirectory))
+            {
+                return null;
+            }
+            List<File> classFiles = new ArrayList<>();
+            for (File classFile : FileUtils.listFiles(outputDirectory, new String[]{"class"}, true))
+            {
+                classFiles.add(new File(baseDir, outputDirectory.toPath().relativize(classFile.toPath()).toString()));
+            }
+            FileUtils.copyDirectory(outputDirectory, baseDir, false);
+            return classFiles;
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(outputDirectory);
+        }
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject
+    {
+        private final RobotSpec robotSpec;
+        private final String className;
+
+        private SourceFile(RobotSpec robotSpec)
+        {
+            this(robotSpec, robotSpec.getPackageName().isEmpty()
+                    ? robotSpec.getClassName()
+                    : robotSpec.getPackageName() + "." + robotSpec.getClassName());
+        }
+
+        private SourceFile(RobotSpec robotSpec, String className)
+        {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.robotSpec = robotSpec;
+            this.className = className;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        {
+            return robotSpec.getSource();
+        }
+    }
+
+    /**
+     * Writes class files into the robots directory and keeps track of which ones were written.
+     */
+    private static final class RobotsDirectoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+        private final Map<RobotSpec, List<File>> outputs = new HashMap<>();
+
+        private RobotsDirectoryFileManager(StandardJavaFileManager fileManager)
+        {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+        {
+            File file = new File(FileUtil.getRobotsDir(), className.replace('.', File.separatorChar) + kind.extension);
+            if (sibling instanceof SourceFile)
+            {
+                outputs.computeIfAbsent(((SourceFile) sibling).robotSpec, robotSpec -> new ArrayList<>()).add(file);
+            }
+            return new SimpleJavaFileObject(file.toURI(), kind)
+            {
+                @Override
+                public OutputStream openOutputStream() throws IOException
+                {
+                    if (!file.getParentFile().exists() && !file.getParentFile().mkdirs())
+                    {
+                        throw new IOException("Could not create directory " + file.getParentFile());
+                    }
+                    return new FileOutputStream(file);
+                }
+            };
+        }
+
+        private Map<RobotSpec, List<File>> getOutputs()
         {
-            File classesDirectory = new File("robots/classes");
-            FileUtils.copyDirectory(classesDirectory, new File("robots"));
-            FileUtils.cleanDirectory(classesDirectory);
+            return outputs;
         }
     }
 }
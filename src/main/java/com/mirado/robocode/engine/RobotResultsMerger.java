@@ -0,0 +1,86 @@
+package com.mirado.robocode.engine;
+
+import robocode.control.RobotResults;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds up the results of battles between the same robots, as if they had been one battle with all the rounds.
+ */
+public class RobotResultsMerger
+{
+    private final Map<String, Totals> totals = new LinkedHashMap<>();
+
+    public void add(List<RobotResults> results)
+    {
+        for (RobotResults robotResults : results)
+        {
+            totals.computeIfAbsent(robotResults.getRobot().getClassName(), className -> new Totals(robotResults)).add(robotResults);
+        }
+    }
+
+    /**
+     * @return the summed results, ranked by total score
+     */
+    public List<RobotResults> getResults()
+    {
+        List<Totals> ranked = new ArrayList<>(totals.values());
+        ranked.sort((a, b) -> Double.compare(b.score, a.score));
+        List<RobotResults> results = new ArrayList<>(ranked.size());
+        for (int i = 0; i < ranked.size(); i++)
+        {
+            Totals t = ranked.get(i);
+            results.add(new RobotResults(t.first.getRobot(), t.first.getTeamLeaderName(), i + 1, t.score, t.survival,
+                    t.lastSurvivorBonus, t.bulletDamage, t.bulletDamageBonus, t.ramDamage, t.ramDamageBonus, t.firsts,
+                    t.seconds, t.thirds));
+        }
+        return results;
+    }
+
+    public static List<RobotResults> merge(List<List<RobotResults>> battles)
+    {
+        RobotResultsMerger merger = new RobotResultsMerger();
+        for (List<RobotResults> battle : battles)
+        {
+            merger.add(battle);
+        }
+        return merger.getResults();
+    }
+
+    private static final class Totals
+    {
+        private final RobotResults first;
+        private double score;
+        private double survival;
+        private double lastSurvivorBonus;
+        private double bulletDamage;
+        private double bulletDamageBonus;
+        private double ramDamage;
+        private double ramDamageBonus;
+        private int firsts;
+        private int seconds;
+        private int thirds;
+
+        private Totals(RobotResults first)
+        {
+            this.first = first;
+        }
+
+        private void add(RobotResults results)
+        {
+            score += results.getScore();
+            survival += results.getSurvival();
+            lastSurvivorBonus += results.getLastSurvivorBonus();
+            bulletDamage += results.getBulletDamage();
+            bulletDamageBonus += results.getBulletDamageBonus();
+            ramDamage += results.getRamDamage();
+            ramDamageBonus += results.getRamDamageBonus();
+            firsts += results.getFirsts();
+            seconds += results.getSeconds();
+            thirds += results.getThirds();
+        }
+    }
+}
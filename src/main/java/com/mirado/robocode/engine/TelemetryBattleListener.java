@@ -0,0 +1,111 @@
+package com.mirado.robocode.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import robocode.control.events.BattleAdaptor;
+import robocode.control.events.BattleStartedEvent;
+import robocode.control.events.RoundEndedEvent;
+import robocode.control.events.TurnEndedEvent;
+import robocode.control.events.TurnStartedEvent;
+import robocode.control.snapshot.IRobotSnapshot;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every turn and counts the turns every robot skipped. The counters are allocated when the battle starts and the
+ * turn callbacks only update them, the one allocation per turn is the small array of robot snapshots Robocode copies on
+ * every call to {@code getRobots()}. Robocode doesn't expose the cpu time of a robot, a skipped turn, which the engine
+ * reports in the robot's output, is the sign of a robot using too much of it. The output only holds what the robot
+ * printed that turn, so every turn is scanned rather than a sample.
+ */
+public class TelemetryBattleListener extends BattleAdaptor
+{
+    private static final Logger logger = LoggerFactory.getLogger(TelemetryBattleListener.class);
+    private static final String SKIPPED_TURN = "skipped turn";
+    private final TurnHistogram battleTurnTimes = new TurnHistogram();
+    private final TurnHistogram roundTurnTimes = new TurnHistogram();
+    private String[] robotNames = new String[0];
+    private int[] skippedTurns = new int[0];
+    private int[] roundSkippedTurns = new int[0];
+    private long turnStartedNanos;
+
+    @Override
+    public void onBattleStarted(BattleStartedEvent event)
+    {
+        battleTurnTimes.reset();
+        roundTurnTimes.reset();
+        robotNames = new String[event.getRobotsCount()];
+        skippedTurns = new int[event.getRobotsCount()];
+        roundSkippedTurns = new int[event.getRobotsCount()];
+    }
+
+    @Override
+    public void onTurnStarted(TurnStartedEvent event)
+    {
+        turnStartedNanos = System.nanoTime();
+    }
+
+    @Override
+    public void onTurnEnded(TurnEndedEvent event)
+    {
+        long nanos = System.nanoTime() - turnStartedNanos;
+        battleTurnTimes.record(nanos);
+        roundTurnTimes.record(nanos);
+        //getRobots() copies the array, call it once per turn
+        for (IRobotSnapshot robot : event.getTurnSnapshot().getRobots())
+        {
+            int index = robot.getRobotIndex();
+            if (index >= robotNames.length)
+            {
+                continue;
+            }
+            if (robotNames[index] == null)
+            {
+                robotNames[index] = robot.getName();
+            }
+            String output = robot.getOutputStreamSnapshot();
+            if (output != null && output.contains(SKIPPED_TURN))
+            {
+                skippedTurns[index]++;
+                roundSkippedTurns[index]++;
+            }
+        }
+    }
+
+    @Override
+    public void onRoundEnded(RoundEndedEvent event)
+    {
+        int skipped = 0;
+        for (int i = 0; i < roundSkippedTurns.length; i++)
+        {
+            skipped += roundSkippedTurns[i];
+            roundSkippedTurns[i] = 0;
+        }
+        logger.info("Round {}: {} turns, p50 {} us, p99 {} us, max {} us, {} skipped turns", event.getRound(),
+                roundTurnTimes.getCount(), toMicros(roundTurnTimes.getQuantileNanos(0.5)),
+                toMicros(roundTurnTimes.getQuantileNanos(0.99)), toMicros(roundTurnTimes.getMaxNanos()), skipped);
+        roundTurnTimes.reset();
+    }
+
+    /**
+     * @return the telemetry of the last battle
+     */
+    public TelemetrySummary getSummary()
+    {
+        LinkedHashMap<String, Integer> skippedByRobot = new LinkedHashMap<>();
+        for (int i = 0; i < robotNames.length; i++)
+        {
+            if (robotNames[i] != null)
+            {
+                skippedByRobot.merge(robotNames[i], skippedTurns[i], Integer::sum);
+            }
+        }
+        return new TelemetrySummary(battleTurnTimes.copy(), skippedByRobot);
+    }
+
+    private static long toMicros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,46 @@
+package com.mirado.robocode.engine;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the engine went through during one battle: how long its turns took and how many turns each robot skipped
+ * for taking too long.
+ */
+public class TelemetrySummary implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private final TurnHistogram turnTimes;
+    private final LinkedHashMap<String, Integer> skippedTurns;
+
+    TelemetrySummary(TurnHistogram turnTimes, LinkedHashMap<String, Integer> skippedTurns)
+    {
+        this.turnTimes = turnTimes;
+        this.skippedTurns = skippedTurns;
+    }
+
+    public TurnHistogram getTurnTimes()
+    {
+        return turnTimes;
+    }
+
+    /**
+     * @return skipped turns by robot name
+     */
+    public Map<String, Integer> getSkippedTurns()
+    {
+        return Collections.unmodifiableMap(skippedTurns);
+    }
+
+    public int getTotalSkippedTurns()
+    {
+        int total = 0;
+        for (int skipped : skippedTurns.values())
+        {
+            total += skipped;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,46 @@
+package com.mirado.robocode.engine;
+
+import java.io.Serializable;
+
+/**
+ * The state of every robot at the end of a turn, quantized to ints so frames are cheap to send and to diff. Robot
+ * {@code i} has the {@link #VALUES_PER_ROBOT} values starting at {@code i * VALUES_PER_ROBOT}: x and y in tenths of a
+ * pixel, energy in tenths, body, gun and radar heading in tenths of a degree, and the ordinal of its state.
+ */
+class TurnFrame implements Serializable
+{
+    static final int VALUES_PER_ROBOT = 7;
+    private static final long serialVersionUID = 1L;
+    private final int round;
+    private final int turn;
+    private final String[] names;
+    private final int[] values;
+
+    TurnFrame(int round, int turn, String[] names, int[] values)
+    {
+        this.round = round;
+        this.turn = turn;
+        this.names = names;
+        this.values = values;
+    }
+
+    int getRound()
+    {
+        return round;
+    }
+
+    int getTurn()
+    {
+        return turn;
+    }
+
+    String[] getNames()
+    {
+        return names;
+    }
+
+    int[] getValues()
+    {
+        return values;
+    }
+}
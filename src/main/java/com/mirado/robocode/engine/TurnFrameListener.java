@@ -0,0 +1,61 @@
+package com.mirado.robocode.engine;
+
+import com.mirado.robocode.archaius.Config;
+import com.netflix.archaius.api.Property;
+import robocode.control.events.BattleAdaptor;
+import robocode.control.events.TurnEndedEvent;
+import robocode.control.snapshot.IRobotSnapshot;
+import robocode.control.snapshot.ITurnSnapshot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Samples the running battle into {@link TurnFrame}s for the live view, at most {@code stream.max_fps} per second of
+ * wall time. Battles run faster than real time, so the live view is fast forwarded rather than sent every turn.
+ */
+class TurnFrameListener extends BattleAdaptor
+{
+    static final Property<Integer> MAX_FPS = Config.getPropertyFactory().getProperty("stream.max_fps").asInteger(30);
+    private final Consumer<TurnFrame> sink;
+    private long lastFrameNanos;
+
+    TurnFrameListener(Consumer<TurnFrame> sink)
+    {
+        this.sink = sink;
+    }
+
+    @Override
+    public void onTurnEnded(TurnEndedEvent event)
+    {
+        long now = System.nanoTime();
+        if (now - lastFrameNanos < TimeUnit.SECONDS.toNanos(1) / Math.max(1, MAX_FPS.get()))
+        {
+            return;
+        }
+        lastFrameNanos = now;
+        ITurnSnapshot snapshot = event.getTurnSnapshot();
+        IRobotSnapshot[] robots = snapshot.getRobots();
+        String[] names = new String[robots.length];
+        int[] values = new int[robots.length * TurnFrame.VALUES_PER_ROBOT];
+        for (int i = 0; i < robots.length; i++)
+        {
+            IRobotSnapshot robot = robots[i];
+            int offset = i * TurnFrame.VALUES_PER_ROBOT;
+            names[i] = robot.getName();
+            values[offset] = (int) Math.round(robot.getX() * 10);
+            values[offset + 1] = (int) Math.round(robot.getY() * 10);
+            values[offset + 2] = (int) Math.round(robot.getEnergy() * 10);
+            values[offset + 3] = toTenthsOfDegree(robot.getBodyHeading());
+            values[offset + 4] = toTenthsOfDegree(robot.getGunHeading());
+            values[offset + 5] = toTenthsOfDegree(robot.getRadarHeading());
+            values[offset + 6] = robot.getState().ordinal();
+        }
+        sink.accept(new TurnFrame(snapshot.getRound(), snapshot.getTurn(), names, values));
+    }
+
+    private static int toTenthsOfDegree(double radians)
+    {
+        return (int) Math.round(Math.toDegrees(radians) * 10);
+    }
+}
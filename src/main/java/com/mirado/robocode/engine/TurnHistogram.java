@@ -0,0 +1,87 @@
+package com.mirado.robocode.engine;
+
+import java.io.Serializable;
+
+/**
+ * Fixed size histogram of durations with one bucket per power of two nanoseconds. Recording never allocates, so it
+ * can sit on the engine thread.
+ */
+public class TurnHistogram implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private final long[] buckets = new long[64];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    void record(long nanos)
+    {
+        long value = Math.max(1, nanos);
+        buckets[63 - Long.numberOfLeadingZeros(value)]++;
+        count++;
+        totalNanos += value;
+        maxNanos = Math.max(maxNanos, value);
+    }
+
+    void add(TurnHistogram other)
+    {
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        totalNanos += other.totalNanos;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    void reset()
+    {
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i] = 0;
+        }
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    TurnHistogram copy()
+    {
+        TurnHistogram copy = new TurnHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public long getMeanNanos()
+    {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos;
+    }
+
+    /**
+     * @return upper bound of the bucket holding the quantile, at most a factor two above the real value
+     */
+    public long getQuantileNanos(double quantile)
+    {
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++)
+        {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0)
+            {
+                return Math.min(maxNanos, i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,70 @@
+package com.mirado.robocode.engine;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A unit of work sent from the server to a battle worker process.
+ */
+class WorkerCommand implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    enum Type
+    {
+        BATTLE,
+        REPLAY,
+        WARM_UP
+    }
+
+    private final Type type;
+    private final BattleRequest battleRequest;
+    private final byte[] recording;
+    private final ArrayList<String> changedRobots;
+
+    private WorkerCommand(Type type, BattleRequest battleRequest, byte[] recording, ArrayList<String> changedRobots)
+    {
+        this.type = type;
+        this.battleRequest = battleRequest;
+        this.recording = recording;
+        this.changedRobots = changedRobots;
+    }
+
+    /**
+     * @param changedRobots full class names of the robots that changed since the worker's last battle
+     */
+    static WorkerCommand battle(BattleRequest battleRequest, ArrayList<String> changedRobots)
+    {
+        return new WorkerCommand(Type.BATTLE, battleRequest, null, changedRobots);
+    }
+
+    static WorkerCommand warmUp()
+    {
+        return new WorkerCommand(Type.WARM_UP, null, null, null);
+    }
+
+    static WorkerCommand replay(byte[] recording)
+    {
+        return new WorkerCommand(Type.REPLAY, null, recording, null);
+    }
+
+    Type getType()
+    {
+        return type;
+    }
+
+    BattleRequest getBattleRequest()
+    {
+        return battleRequest;
+    }
+
+    byte[] getRecording()
+    {
+        return recording;
+    }
+
+    ArrayList<String> getChangedRobots()
+    {
+        return changedRobots;
+    }
+}
@@ -0,0 +1,62 @@
+package com.mirado.robocode.engine;
+
+import robocode.control.RobotResults;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The answer from a battle worker process to a {@link WorkerCommand}.
+ */
+class WorkerReply implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private final ArrayList<RobotResults> results;
+    private final String recordingPath;
+    private final TelemetrySummary telemetry;
+    private final String error;
+
+    private WorkerReply(List<RobotResults> results, String recordingPath, TelemetrySummary telemetry, String error)
+    {
+        this.results = results == null ? null : new ArrayList<>(results);
+        this.recordingPath = recordingPath;
+        this.telemetry = telemetry;
+        this.error = error;
+    }
+
+    static WorkerReply success(List<RobotResults> results, String recordingPath)
+    {
+        return new WorkerReply(results, recordingPath, null, null);
+    }
+
+    static WorkerReply success(List<RobotResults> results, String recordingPath, TelemetrySummary telemetry)
+    {
+        return new WorkerReply(results, recordingPath, telemetry, null);
+    }
+
+    static WorkerReply failure(String error)
+    {
+        return new WorkerReply(null, null, null, error);
+    }
+
+    List<RobotResults> getResults()
+    {
+        return results;
+    }
+
+    String getRecordingPath()
+    {
+        return recordingPath;
+    }
+
+    TelemetrySummary getTelemetry()
+    {
+        return telemetry;
+    }
+
+    String getError()
+    {
+        return error;
+    }
+}
@@ -0,0 +1,78 @@
+package com.mirado.robocode.git;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the decoded content of git blobs on disk, keyed by blob SHA. A blob SHA is the hash of its content, so an
+ * entry never goes stale and a file is downloaded once no matter how many commits or restarts it survives.
+ */
+class BlobCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(BlobCache.class);
+    private static final Pattern SHA = Pattern.compile("[0-9a-f]{40}");
+    private final File directory;
+
+    BlobCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the content of the blob, or null if it isn't cached
+     */
+    String get(String sha)
+    {
+        if (!SHA.matcher(sha).matches())
+        {
+            return null;
+        }
+        File entry = new File(directory, sha);
+        if (!entry.isFile())
+        {
+            return null;
+        }
+        try
+        {
+            return FileUtils.readFileToString(entry, StandardCharsets.UTF_8);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read blob {} from cache", sha, ex);
+            return null;
+        }
+    }
+
+    void put(String sha, String content)
+    {
+        if (!SHA.matcher(sha).matches())
+        {
+            return;
+        }
+        Path temp = null;
+        try
+        {
+            FileUtils.forceMkdir(directory);
+            temp = Files.createTempFile(directory.toPath(), sha, ".tmp");
+            Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, new File(directory, sha).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not store blob {} in cache", sha, ex);
+            if (temp != null)
+            {
+                FileUtils.deleteQuietly(temp.toFile());
+            }
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package com.mirado.robocode.git;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.mirado.robocode.archaius.Config;
 import com.mirado.robocode.domain.RobotSpec;
 import com.mirado.robocode.domain.SourceLanguage;
+import com.mirado.robocode.services.BattleScheduler;
 import com.mirado.robocode.services.RoboService;
 import com.netflix.archaius.api.Property;
 import org.apache.commons.codec.binary.Base64;
@@ -13,17 +12,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
-import javax.ws.rs.core.UriBuilder;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,59 +45,133 @@ import java.util.regex.Pattern;
  */
 public class GitPoller
 {
-    private static final Property<String> CLIENT_ID = Config.getPropertyFactory().getProperty("github.client_id").asString(null);
-    private static final Property<String> CLIENT_SECRET = Config.getPropertyFactory().getProperty("github.client_secret").asString(null);
     private static final Logger logger = LoggerFactory.getLogger(GitPoller.class);
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     private final Timer timer = new Timer(true);
-    private final Map<String, Instant> LAST_CHECKED = new HashMap<>();
+    private static final Property<Integer> CONCURRENCY = Config.getPropertyFactory().getProperty("github.concurrency").asInteger(8);
+    private static final Property<Integer> POLL_INTERVAL_SECONDS = Config.getPropertyFactory().getProperty("github.poll_interval_seconds").asInteger(60);
+    private static final Property<Integer> RECONCILE_INTERVAL_SECONDS = Config.getPropertyFactory().getProperty("github.reconcile_interval_seconds").asInteger(900);
+    private static final Property<Integer> PUSH_RETRY_SECONDS = Config.getPropertyFactory().getProperty("github.push_retry_seconds").asInteger(30);
+    private final Map<String, Instant> LAST_CHECKED = new ConcurrentHashMap<>();
+    private final ExecutorService githubExecutor = Executors.newFixedThreadPool(CONCURRENCY.get(), runnable ->
+    {
+        Thread thread = new Thread(runnable, "github");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //Not the timer, a retry shouldn't wait behind a poll of the whole organization
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "github-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final BlockingQueue<String> pushedRepositories = new LinkedBlockingQueue<>();
+    private final Set<String> queuedRepositories = ConcurrentHashMap.newKeySet();
+    private final Object ingestLock = new Object();
+    private final BlobCache blobCache = new BlobCache(new File("cache/blobs"));
     private final RoboService roboService;
+    private final GithubClient githubClient;
+    private final BattleScheduler battleScheduler;
 
     @Inject
-    public GitPoller(RoboService roboService)
+    public GitPoller(RoboService roboService, GithubClient githubClient, BattleScheduler battleScheduler)
     {
         this.roboService = roboService;
+        this.githubClient = githubClient;
+        this.battleScheduler = battleScheduler;
     }
 
-    private static SourceSpec findRobot(JsonNode directory) throws IOException
+    /**
+     * Looks through the source files of a recursive tree listing, most likely robot first.
+     */
+    private SourceSpec findRobot(JsonNode tree) throws IOException
     {
-        for (JsonNode node : directory.get("tree"))
+        if (tree.path("truncated").asBoolean())
+        {
+            logger.warn("Tree listing {} is truncated, robot may not be found", tree.path("sha").asText());
+        }
+        List<JsonNode> candidates = new ArrayList<>();
+        for (JsonNode node : tree.get("tree"))
         {
-            if (!"tree".equals(node.get("type").asText()))
+            String path = node.get("path").asText();
+            if ("blob".equals(node.get("type").asText()) && (path.endsWith(".java") || path.endsWith(".clj")))
             {
-                String fileName = node.get("path").asText();
-                String className = fileName.split("\\.")[0];
-                if (fileName.endsWith(".java") || fileName.endsWith(".clj"))
-                {
-                    JsonNode blobNode = readUrl(node.get("url").asText());
-                    String content = new String(Base64.decodeBase64(blobNode.get("content").asText()), StandardCharsets.UTF_8);
-                    SourceSpec sourceSpec = null;
-                    if (fileName.endsWith(".java"))
-                    {
-                        sourceSpec = fromJavaFile(className, content);
-                    }
-                    else if (fileName.endsWith(".clj"))
-                    {
-                        sourceSpec = fromClojureFile(className, content);
-                    }
-                    if (sourceSpec != null)
-                    {
-                        return sourceSpec;
-                    }
-                }
+                candidates.add(node);
+            }
+        }
+        candidates.sort(Comparator.comparingInt(node -> getCandidateRank(node.get("path").asText())));
+        for (JsonNode node : candidates)
+        {
+            String path = node.get("path").asText();
+            String fileName = path.substring(path.lastIndexOf('/') + 1);
+            String className = fileName.split("\\.")[0];
+            String content = getBlobContent(node.get("sha").asText(), node.get("url").asText());
+            SourceSpec sourceSpec;
+            if (fileName.endsWith(".java"))
+            {
+                sourceSpec = fromJavaFile(className, content);
             }
             else
             {
-                SourceSpec robot = findRobot(readUrl(node.get("url").asText()));
-                if (robot != null)
-                {
-                    return robot;
-                }
+                sourceSpec = fromClojureFile(className, content);
+            }
+            if (sourceSpec != null)
+            {
+                return sourceSpec;
             }
         }
         return null;
     }
 
+    /**
+     * Lower is more likely to be the robot: sources outside of test directories first, then sources under src, then
+     * the least nested.
+     */
+    static int getCandidateRank(String path)
+    {
+        String lowerCasePath = "/" + path.toLowerCase();
+        int rank = 0;
+        if (lowerCasePath.contains("/test/") || lowerCasePath.contains("/tests/") || isTestFileName(path.substring(path.lastIndexOf('/') + 1)))
+        {
+            rank += 1000;
+        }
+        if (!lowerCasePath.startsWith("/src/"))
+        {
+            rank += 100;
+        }
+        for (int i = 0; i < path.length(); i++)
+        {
+            if (path.charAt(i) == '/')
+            {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * The JUnit and clojure.test naming conventions only, so robots like TestBot.java or Tester.java aren't taken for
+     * tests. Tests named otherwise are still found by their directory.
+     */
+    private static boolean isTestFileName(String fileName)
+    {
+        return fileName.endsWith("Test.java")
+                || fileName.endsWith("Tests.java")
+                || fileName.endsWith("_test.clj");
+    }
+
+    private String getBlobContent(String sha, String url) throws IOException
+    {
+        String content = blobCache.get(sha);
+        if (content == null)
+        {
+            JsonNode blobNode = readUrl(url);
+            content = new String(Base64.decodeBase64(blobNode.get("content").asText()), StandardCharsets.UTF_8);
+            blobCache.put(sha, content);
+        }
+        return content;
+    }
+
     private static SourceSpec fromClojureFile(String className, String content) throws MalformedURLException
     {
         if (extendsClojureRobot(content))
@@ -133,27 +220,9 @@ public class GitPoller
         return null;
     }
 
-    private static JsonNode readUrl(String urlString) throws IOException
+    private JsonNode readUrl(String urlString) throws IOException
     {
-        return OBJECT_MAPPER.readTree(withSecret(urlString));
-    }
-
-    private static URL withSecret(String urlString) throws MalformedURLException
-    {
-        String clientId = CLIENT_ID.get();
-        String clientSecret = CLIENT_SECRET.get();
-        UriBuilder uriBuilder = UriBuilder
-                .fromUri(urlString);
-        if (clientId != null && clientSecret != null)
-        {
-            uriBuilder = uriBuilder
-                    .queryParam("client_id", clientId)
-                    .queryParam("client_secret", clientSecret);
-        }
-        URL url = uriBuilder
-                .build()
-                .toURL();
-        return url;
+        return githubClient.readJson(urlString);
     }
 
     private static boolean extendsClojureRobot(String content)
@@ -168,7 +237,7 @@ public class GitPoller
         return matcher.find();
     }
 
-    private static JsonNode getRobotJson(String repoName) throws IOException
+    private JsonNode getRobotJson(String repoName) throws IOException
     {
         try
         {
@@ -186,9 +255,14 @@ public class GitPoller
         return "MiradoConsulting";
     }
 
+    /**
+     * Starts polling the organization. When GitHub pushes are delivered by webhook the organization is only polled
+     * now and then to pick up anything a lost delivery missed.
+     */
     public void start()
     {
         GitPoller gitPoller = this;
+        int intervalSeconds = githubClient.isWebhookConfigured() ? RECONCILE_INTERVAL_SECONDS.get() : POLL_INTERVAL_SECONDS.get();
         timer.schedule(new TimerTask()
         {
             @Override
@@ -196,69 +270,213 @@ public class GitPoller
             {
                 gitPoller.run();
             }
-        }, 0, 60000);
+        }, 0, TimeUnit.SECONDS.toMillis(intervalSeconds));
+        Thread pushThread = new Thread(this::ingestPushes, "github-push");
+        pushThread.setDaemon(true);
+        pushThread.start();
     }
 
-    private void run()
+    /**
+     * Queues a repository that was pushed to, to be checked ahead of the next poll.
+     */
+    public void enqueue(String repoName)
     {
-        String url = "https://api.github.com/orgs/" + getGithubOrganization() + "/repos";
-        try
+        //A push is a reason to check again right away
+        LAST_CHECKED.remove(repoName);
+        if (queuedRepositories.add(repoName))
         {
-            ArrayNode repositoriesNode = (ArrayNode) readUrl(url);
-            boolean modified = false;
-            for (JsonNode repo : repositoriesNode)
+            pushedRepositories.add(repoName);
+        }
+    }
+
+    private void ingestPushes()
+    {
+        while (true)
+        {
+            try
             {
-                String repoName = repo.get("name").asText();
-                Instant lastPushed = Instant.parse(repo.get("pushed_at").asText());
-                RobotSpec existing = roboService.getRobot(repoName);
-                if (existing != null)
+                List<String> repoNames = new ArrayList<>();
+                repoNames.add(pushedRepositories.take());
+                pushedRepositories.drainTo(repoNames);
+                Map<String, CompletableFuture<RobotSpec>> checks = new LinkedHashMap<>();
+                for (String repoName : repoNames)
                 {
-                    if (existing.getLastPushed().equals(lastPushed))
+                    queuedRepositories.remove(repoName);
+                    try
+                    {
+                        GithubRepository repo = GithubRepository.read(githubClient.read("https://api.github.com/repos/" + getGithubOrganization() + "/" + repoName));
+                        checks.put(repoName, checkRepositoryAsync(repo));
+                    }
+                    catch (FileNotFoundException e)
+                    {
+                        logger.warn("Pushed repository {} is gone", repoName);
+                    }
+                    catch (IOException e)
                     {
-                        continue;
+                        logger.error("Could not read pushed repository {}", repoName, e);
+                        retryPush(repoName);
                     }
                 }
-                //To not check the same repo too often that we know we can't
-                if (LAST_CHECKED.containsKey(repoName) && LAST_CHECKED.get(repoName).plusSeconds(60 * 15).isBefore(Instant.now()))
+                try
                 {
-                    continue;
+                    ingest(checks, this::retryPush);
                 }
-                JsonNode robotJson = getRobotJson(repoName);
-                if (robotJson == null)
+                catch (IOException | RuntimeException e)
                 {
-                    continue;
+                    logger.error("Could not ingest pushes {}", checks.keySet(), e);
+                    checks.keySet().forEach(this::retryPush);
                 }
-                String version = getVersion(repoName);
-                SourceSpec sourceSpec = findRobot(readUrl("https://api.github.com/repos/" + getGithubOrganization() + "/" + repoName + "/git/trees/" + version));
-                if (sourceSpec == null)
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues the push again after a while, rather than leaving it to the next reconciliation.
+     */
+    private void retryPush(String repoName)
+    {
+        retryExecutor.schedule(() -> enqueue(repoName), PUSH_RETRY_SECONDS.get(), TimeUnit.SECONDS);
+    }
+
+    private void run()
+    {
+        String url = "https://api.github.com/orgs/" + getGithubOrganization() + "/repos?per_page=100";
+        try
+        {
+            Map<String, CompletableFuture<RobotSpec>> checks = new LinkedHashMap<>();
+            //Checks start as soon as their page is read, while the next page is being fetched
+            while (url != null)
+            {
+                GithubResponse page = githubClient.fetch(url);
+                for (GithubRepository repo : GithubRepository.readList(page.getBody()))
                 {
-                    LAST_CHECKED.put(repoName, Instant.now());
+                    checks.put(repo.getName(), checkRepositoryAsync(repo));
+                }
+                url = page.getNextUrl();
+            }
+            //The next poll checks them again
+            ingest(checks, repoName -> {});
+        }
+        catch (Exception e)
+        {
+            logger.error("", e);
+        }
+    }
+
+    /**
+     * Waits for the repository checks, then compiles the robots that changed and asks for a battle with them. Polls
+     * and pushes take turns, so the same robot is never compiled twice at once.
+     *
+     * @param failed called with the repositories that could not be read from GitHub
+     */
+    private void ingest(Map<String, CompletableFuture<RobotSpec>> checks, Consumer<String> failed) throws IOException, InterruptedException
+    {
+        synchronized (ingestLock)
+        {
+            Map<String, RobotSpec> changed = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<RobotSpec>> check : checks.entrySet())
+            {
+                RobotSpec robotSpec;
+                try
+                {
+                    robotSpec = check.getValue().join();
+                }
+                catch (CompletionException ex)
+                {
+                    //Only skip this repository, the others are still ingested
+                    logger.error("Could not check {}", check.getKey(), ex.getCause());
+                    if (ex.getCause() instanceof UncheckedIOException)
+                    {
+                        failed.accept(check.getKey());
+                    }
                     continue;
                 }
-                RobotSpec robotSpec = RobotSpec
-                        .newBuilder()
-                        .lastPushed(lastPushed)
-                        .name(sourceSpec.className)
-                        .owner(robotJson.has("owner") ? robotJson.get("owner").asText() : sourceSpec.className)
-                        .url(repo.get("html_url").asText())
-                        .className(sourceSpec.className)
-                        .source(sourceSpec.source)
-                        .packageName(sourceSpec.packageName)
-                        .version(version)
-                        .sourceLanguage(sourceSpec.language)
-                        .build();
-                roboService.putRobotAndRecompile(repoName, robotSpec);
-                modified = true;
+                //Check again under the lock, the other side may have just picked up the same push
+                RobotSpec existing = roboService.getRobot(check.getKey());
+                if (robotSpec != null && (existing == null || !existing.getLastPushed().equals(robotSpec.getLastPushed())))
+                {
+                    changed.put(check.getKey(), robotSpec);
+                }
             }
-            if (modified)
+            if (!changed.isEmpty())
             {
-                roboService.runBattleAndUploadToS3();
+                roboService.putRobotsAndRecompile(changed);
+                battleScheduler.requestBattle();
             }
         }
-        catch (Exception e)
+    }
+
+    /**
+     * @return completes with the robot as {@link #checkRepository}, or exceptionally when GitHub couldn't be read
+     */
+    private CompletableFuture<RobotSpec> checkRepositoryAsync(GithubRepository repo)
+    {
+        return CompletableFuture.supplyAsync(() ->
         {
-            logger.error("", e);
+            try
+            {
+                return checkRepository(repo);
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }, githubExecutor);
+    }
+
+    /**
+     * @return the robot in the repository if it changed since it was last seen, otherwise null
+     */
+    private RobotSpec checkRepository(GithubRepository repo) throws IOException
+    {
+        String repoName = repo.getName();
+        Instant lastPushed = repo.getPushedAt();
+        if (lastPushed == null)
+        {
+            //Nothing was ever pushed
+            return null;
+        }
+        RobotSpec existing = roboService.getRobot(repoName);
+        if (existing != null)
+        {
+            if (existing.getLastPushed().equals(lastPushed))
+            {
+                return null;
+            }
+        }
+        //To not check the same repo too often that we know we can't
+        if (LAST_CHECKED.containsKey(repoName) && LAST_CHECKED.get(repoName).plusSeconds(60 * 15).isBefore(Instant.now()))
+        {
+            return null;
+        }
+        JsonNode robotJson = getRobotJson(repoName);
+        if (robotJson == null)
+        {
+            return null;
+        }
+        String version = getVersion(repoName);
+        SourceSpec sourceSpec = findRobot(readUrl("https://api.github.com/repos/" + getGithubOrganization() + "/" + repoName + "/git/trees/" + version + "?recursive=1"));
+        if (sourceSpec == null)
+        {
+            LAST_CHECKED.put(repoName, Instant.now());
+            return null;
         }
+        return RobotSpec
+                .newBuilder()
+                .lastPushed(lastPushed)
+                .name(sourceSpec.className)
+                .owner(robotJson.has("owner") ? robotJson.get("owner").asText() : sourceSpec.className)
+                .url(repo.getHtmlUrl())
+                .className(sourceSpec.className)
+                .source(sourceSpec.source)
+                .packageName(sourceSpec.packageName)
+                .version(version)
+                .sourceLanguage(sourceSpec.language)
+                .build();
     }
 
     private String getVersion(String repoName) throws IOException
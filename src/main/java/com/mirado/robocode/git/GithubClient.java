@@ -0,0 +1,401 @@
+package com.mirado.robocode.git;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mirado.robocode.archaius.Config;
+import com.netflix.archaius.api.Property;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.ws.rs.core.UriBuilder;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads from GitHub, remembering the ETag and Last-Modified of every response so unchanged resources are answered
+ * with a 304 Not Modified and served from the cache. Conditional requests answered with 304 don't count against the
+ * GitHub rate limit. The cache holds at most {@code github.cache_bytes} of response bodies, least recently used
+ * first out, and bodies bigger than {@code github.cache_max_body_bytes} aren't cached at all.
+ * <p>
+ * Safe to use from several threads. The rate limit headers of every response are shared between them: requests are
+ * spaced out once the remaining quota runs low, and everyone waits for the reset when it runs out.
+ */
+public class GithubClient
+{
+    private static final Property<String> CLIENT_ID = Config.getPropertyFactory().getProperty("github.client_id").asString(null);
+    private static final Property<String> CLIENT_SECRET = Config.getPropertyFactory().getProperty("github.client_secret").asString(null);
+    private static final Property<String> WEBHOOK_SECRET = Config.getPropertyFactory().getProperty("github.webhook_secret").asString(null);
+    private static final Property<Long> CACHE_BYTES = Config.getPropertyFactory().getProperty("github.cache_bytes").asLong(32L * 1024 * 1024);
+    private static final Property<Integer> CACHE_MAX_BODY_BYTES = Config.getPropertyFactory().getProperty("github.cache_max_body_bytes").asInteger(1024 * 1024);
+    private static final Property<Integer> MAX_RETRIES = Config.getPropertyFactory().getProperty("github.max_retries").asInteger(3);
+    private static final Property<Integer> LOW_RATE_LIMIT = Config.getPropertyFactory().getProperty("github.low_rate_limit").asInteger(100);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final Logger logger = LoggerFactory.getLogger(GithubClient.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    //Least recently used first, guarded by itself
+    private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final Object rateLimitLock = new Object();
+    private long nextRequestMillis;
+    private long requestIntervalMillis;
+
+    public JsonNode readJson(String urlString) throws IOException
+    {
+        return OBJECT_MAPPER.readTree(read(urlString));
+    }
+
+    /**
+     * @throws FileNotFoundException if there is nothing at the url
+     */
+    public byte[] read(String urlString) throws IOException
+    {
+        return fetch(urlString).getBody();
+    }
+
+    /**
+     * Reads the url along with the url of the next page of results, if any.
+     *
+     * @throws FileNotFoundException if there is nothing at the url
+     */
+    public GithubResponse fetch(String urlString) throws IOException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            awaitRateLimit();
+            try
+            {
+                return readOnce(urlString);
+            }
+            catch (RateLimitedException ex)
+            {
+                if (attempt >= MAX_RETRIES.get())
+                {
+                    throw ex;
+                }
+                throttled.incrementAndGet();
+                long backoffMillis = ex.retryAfterMillis > 0
+                        ? ex.retryAfterMillis
+                        : Math.min(MAX_BACKOFF_MILLIS, TimeUnit.SECONDS.toMillis(1L << attempt));
+                logger.warn("Rate limited by GitHub reading {}, retrying in {} ms", urlString, backoffMillis);
+                delayRequests(System.currentTimeMillis() + backoffMillis);
+            }
+        }
+    }
+
+    private GithubResponse readOnce(String urlString) throws IOException
+    {
+        CachedResponse cached = getCached(urlString);
+        HttpURLConnection connection = (HttpURLConnection) withSecret(urlString).openConnection();
+        if (cached != null)
+        {
+            if (cached.etag != null)
+            {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null)
+            {
+                connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+        int responseCode = connection.getResponseCode();
+        updateRateLimit(connection);
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null)
+        {
+            hits.incrementAndGet();
+            return cached.response;
+        }
+        if (responseCode >= 400)
+        {
+            //Read the error so the connection can be kept alive
+            IOUtils.closeQuietly(connection.getErrorStream());
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND)
+            {
+                throw new FileNotFoundException(urlString);
+            }
+            if (responseCode == 429 || (responseCode == HttpURLConnection.HTTP_FORBIDDEN && isRateLimited(connection)))
+            {
+                throw new RateLimitedException(urlString, getRetryAfterMillis(connection));
+            }
+            throw new IOException("Got " + responseCode + " from " + urlString);
+        }
+        byte[] body;
+        try (InputStream inputStream = connection.getInputStream())
+        {
+            body = IOUtils.toByteArray(inputStream);
+        }
+        misses.incrementAndGet();
+        GithubResponse response = new GithubResponse(body, getNextUrl(connection.getHeaderField("Link")));
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (etag != null || lastModified != null)
+        {
+            putCached(urlString, new CachedResponse(etag, lastModified, response));
+        }
+        return response;
+    }
+
+    private CachedResponse getCached(String urlString)
+    {
+        synchronized (cache)
+        {
+            return cache.get(urlString);
+        }
+    }
+
+    private void putCached(String urlString, CachedResponse cached)
+    {
+        synchronized (cache)
+        {
+            CachedResponse replaced = cache.remove(urlString);
+            if (replaced != null)
+            {
+                cachedBytes -= replaced.size;
+            }
+            long maxBytes = CACHE_BYTES.get();
+            if (cached.size > CACHE_MAX_BODY_BYTES.get() || cached.size > maxBytes)
+            {
+                return;
+            }
+            Iterator<CachedResponse> eldest = cache.values().iterator();
+            while (cachedBytes + cached.size > maxBytes && eldest.hasNext())
+            {
+                cachedBytes -= eldest.next().size;
+                eldest.remove();
+            }
+            cache.put(urlString, cached);
+            cachedBytes += cached.size;
+        }
+    }
+
+    /**
+     * @param link a Link header like {@code <https://api.github.com/...?page=2>; rel="next", <...>; rel="last"}
+     */
+    private static String getNextUrl(String link)
+    {
+        if (link == null)
+        {
+            return null;
+        }
+        for (String part : link.split(","))
+        {
+            String[] segments = part.split(";");
+            String url = segments[0].trim();
+            for (int i = 1; i < segments.length; i++)
+            {
+                if (segments[i].trim().equals("rel=\"next\"") && url.startsWith("<") && url.endsWith(">"))
+                {
+                    return url.substring(1, url.length() - 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getThrottled()
+    {
+        return throttled.get();
+    }
+
+    public long getCachedBytes()
+    {
+        synchronized (cache)
+        {
+            return cachedBytes;
+        }
+    }
+
+    public boolean isWebhookConfigured()
+    {
+        return WEBHOOK_SECRET.get() != null;
+    }
+
+    /**
+     * Checks the X-Hub-Signature-256 header of a webhook delivery against the HMAC of the body with the webhook
+     * secret.
+     *
+     * @return false if the signature doesn't match or no webhook secret is configured
+     */
+    public boolean verifyWebhookSignature(byte[] body, String signature)
+    {
+        String secret = WEBHOOK_SECRET.get();
+        if (secret == null || signature == null || !signature.startsWith("sha256="))
+        {
+            return false;
+        }
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] expected = Hex.encodeHexString(mac.doFinal(body)).getBytes(StandardCharsets.US_ASCII);
+            byte[] actual = signature.substring("sha256=".length()).toLowerCase().getBytes(StandardCharsets.US_ASCII);
+            //Constant time so the signature can't be guessed byte by byte
+            return MessageDigest.isEqual(expected, actual);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("HmacSHA256 is not available", ex);
+        }
+    }
+
+    /**
+     * Reserves the next free request slot and waits for it, so requests held back by a low quota go out one interval
+     * apart instead of all at once when the delay ends.
+     */
+    private void awaitRateLimit() throws IOException
+    {
+        long waitMillis;
+        synchronized (rateLimitLock)
+        {
+            long slotMillis = Math.max(nextRequestMillis, System.currentTimeMillis());
+            nextRequestMillis = slotMillis + requestIntervalMillis;
+            waitMillis = slotMillis - System.currentTimeMillis();
+        }
+        if (waitMillis <= 0)
+        {
+            return;
+        }
+        try
+        {
+            Thread.sleep(waitMillis);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the GitHub rate limit");
+        }
+    }
+
+    private void delayRequests(long untilMillis)
+    {
+        synchronized (rateLimitLock)
+        {
+            nextRequestMillis = Math.max(nextRequestMillis, untilMillis);
+        }
+    }
+
+    /**
+     * Spreads the remaining requests evenly over what is left of the rate limit window once the quota runs low, and
+     * stops all requests until the reset once it runs out.
+     */
+    private void updateRateLimit(HttpURLConnection connection)
+    {
+        long remaining = connection.getHeaderFieldLong("X-RateLimit-Remaining", -1);
+        long resetMillis = TimeUnit.SECONDS.toMillis(connection.getHeaderFieldLong("X-RateLimit-Reset", 0));
+        if (remaining < 0 || resetMillis == 0)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (rateLimitLock)
+        {
+            requestIntervalMillis = remaining > 0 && remaining < LOW_RATE_LIMIT.get() && resetMillis > now
+                    ? (resetMillis - now) / remaining
+                    : 0;
+        }
+        if (remaining == 0)
+        {
+            logger.warn("GitHub rate limit exhausted, pausing until {}", Instant.ofEpochMilli(resetMillis));
+            delayRequests(resetMillis);
+        }
+    }
+
+    private static boolean isRateLimited(HttpURLConnection connection)
+    {
+        return connection.getHeaderField("Retry-After") != null
+                || "0".equals(connection.getHeaderField("X-RateLimit-Remaining"));
+    }
+
+    private static long getRetryAfterMillis(HttpURLConnection connection)
+    {
+        String retryAfter = connection.getHeaderField("Retry-After");
+        if (retryAfter != null)
+        {
+            try
+            {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            }
+            catch (NumberFormatException ex)
+            {
+                return 0;
+            }
+        }
+        long resetMillis = TimeUnit.SECONDS.toMillis(connection.getHeaderFieldLong("X-RateLimit-Reset", 0));
+        return Math.max(0, resetMillis - System.currentTimeMillis());
+    }
+
+    private static URL withSecret(String urlString) throws MalformedURLException
+    {
+        String clientId = CLIENT_ID.get();
+        String clientSecret = CLIENT_SECRET.get();
+        UriBuilder uriBuilder = UriBuilder
+                .fromUri(urlString);
+        //Links to other pages already carry the credentials
+        if (clientId != null && clientSecret != null && !urlString.contains("client_id="))
+        {
+            uriBuilder = uriBuilder
+                    .queryParam("client_id", clientId)
+                    .queryParam("client_secret", clientSecret);
+        }
+        URL url = uriBuilder
+                .build()
+                .toURL();
+        return url;
+    }
+
+    private static final class RateLimitedException extends IOException
+    {
+        private final long retryAfterMillis;
+
+        private RateLimitedException(String urlString, long retryAfterMillis)
+        {
+            super("Rate limited reading " + urlString);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    private static final class CachedResponse
+    {
+        private final String etag;
+        private final String lastModified;
+        private final GithubResponse response;
+        private final long size;
+
+        private CachedResponse(String etag, String lastModified, GithubResponse response)
+        {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.response = response;
+            size = response.getBody().length;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.mirado.robocode.git;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The few fields of a GitHub repository the poller needs. Repositories are read straight off the parser, skipping
+ * everything else, so a page of the organization listing never turns into a full tree of nodes.
+ */
+class GithubRepository
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private final String name;
+    private final Instant pushedAt;
+    private final String htmlUrl;
+
+    private GithubRepository(String name, Instant pushedAt, String htmlUrl)
+    {
+        this.name = name;
+        this.pushedAt = pushedAt;
+        this.htmlUrl = htmlUrl;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    Instant getPushedAt()
+    {
+        return pushedAt;
+    }
+
+    String getHtmlUrl()
+    {
+        return htmlUrl;
+    }
+
+    /**
+     * @param body a JSON array of repositories
+     */
+    static List<GithubRepository> readList(byte[] body) throws IOException
+    {
+        try (JsonParser parser = JSON_FACTORY.createParser(body))
+        {
+            if (parser.nextToken() != JsonToken.START_ARRAY)
+            {
+                throw new IOException("Expected an array of repositories");
+            }
+            List<GithubRepository> repositories = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.START_OBJECT)
+            {
+                repositories.add(read(parser));
+            }
+            return repositories;
+        }
+    }
+
+    /**
+     * @param body a JSON repository
+     */
+    static GithubRepository read(byte[] body) throws IOException
+    {
+        try (JsonParser parser = JSON_FACTORY.createParser(body))
+        {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+            {
+                throw new IOException("Expected a repository");
+            }
+            return read(parser);
+        }
+    }
+
+    /**
+     * Reads the object the parser is at, leaving the parser at its end.
+     */
+    private static GithubRepository read(JsonParser parser) throws IOException
+    {
+        String name = null;
+        Instant pushedAt = null;
+        String htmlUrl = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME)
+        {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("name".equals(field))
+            {
+                name = parser.getValueAsString();
+            }
+            else if ("pushed_at".equals(field) && value == JsonToken.VALUE_STRING)
+            {
+                pushedAt = Instant.parse(parser.getText());
+            }
+            else if ("html_url".equals(field))
+            {
+                htmlUrl = parser.getValueAsString();
+            }
+            else
+            {
+                parser.skipChildren();
+            }
+        }
+        if (name == null)
+        {
+            throw new IOException("Repository has no name");
+        }
+        return new GithubRepository(name, pushedAt, htmlUrl);
+    }
+}
@@ -0,0 +1,29 @@
+package com.mirado.robocode.git;
+
+/**
+ * The body of a GitHub response and where to find the next page of it.
+ */
+public class GithubResponse
+{
+    private final byte[] body;
+    private final String nextUrl;
+
+    GithubResponse(byte[] body, String nextUrl)
+    {
+        this.body = body;
+        this.nextUrl = nextUrl;
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    /**
+     * @return the url of the next page from the Link header, or null if this is the last page
+     */
+    public String getNextUrl()
+    {
+        return nextUrl;
+    }
+}
@@ -1,8 +1,12 @@
 package com.mirado.robocode.guice;
 
 import com.google.inject.AbstractModule;
-import com.mirado.robocode.engine.BattleRunner;
+import com.mirado.robocode.engine.BattleWorkerPool;
+import com.mirado.robocode.engine.LiveBattleHub;
 import com.mirado.robocode.git.GitPoller;
+import com.mirado.robocode.git.GithubClient;
+import com.mirado.robocode.services.BattleScheduler;
+import com.mirado.robocode.services.Registry;
 import com.mirado.robocode.services.RoboService;
 import com.mirado.robocode.services.ScoreService;
 
@@ -13,9 +17,13 @@ public class RoboModule extends AbstractModule
 {
     protected void configure()
     {
-        bind(BattleRunner.class).asEagerSingleton();
+        bind(BattleWorkerPool.class).asEagerSingleton();
+        bind(LiveBattleHub.class).asEagerSingleton();
         bind(ScoreService.class).asEagerSingleton();
         bind(GitPoller.class).asEagerSingleton();
+        bind(GithubClient.class).asEagerSingleton();
         bind(RoboService.class).asEagerSingleton();
+        bind(Registry.class).asEagerSingleton();
+        bind(BattleScheduler.class).asEagerSingleton();
     }
 }
@@ -0,0 +1,37 @@
+package com.mirado.robocode.resources;
+
+import com.mirado.robocode.engine.LiveBattleHub;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
+
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+
+/**
+ * Streams the running battles as server-sent events, one frame event per turn frame. See {@link LiveBattleHub} for
+ * the format of the frames. The request returns right away, the hub writes to the open stream.
+ */
+@Path("/battles/live")
+public class LiveBattleResource
+{
+    private final LiveBattleHub liveBattleHub;
+
+    @Inject
+    public LiveBattleResource(LiveBattleHub liveBattleHub)
+    {
+        this.liveBattleHub = liveBattleHub;
+    }
+
+    @GET
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput stream(@QueryParam("fps") @DefaultValue("10") int fps)
+    {
+        EventOutput output = new EventOutput();
+        liveBattleHub.subscribe(fps, output);
+        return output;
+    }
+}
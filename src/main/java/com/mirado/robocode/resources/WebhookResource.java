@@ -0,0 +1,75 @@
+package com.mirado.robocode.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mirado.robocode.git.GitPoller;
+import com.mirado.robocode.git.GithubClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+
+/**
+ * Receives GitHub push webhooks so a pushed robot is fetched right away instead of on the next poll.
+ */
+@Path("/github/webhook")
+@Consumes(MediaType.APPLICATION_JSON)
+public class WebhookResource
+{
+    private static final Logger logger = LoggerFactory.getLogger(WebhookResource.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private final GithubClient githubClient;
+    private final GitPoller gitPoller;
+
+    @Inject
+    public WebhookResource(GithubClient githubClient, GitPoller gitPoller)
+    {
+        this.githubClient = githubClient;
+        this.gitPoller = gitPoller;
+    }
+
+    @POST
+    public Response receive(@HeaderParam("X-GitHub-Event") String event, @HeaderParam("X-Hub-Signature-256") String signature, byte[] body)
+    {
+        //Verify against the raw body, parsing first could change the bytes that were signed
+        if (!githubClient.verifyWebhookSignature(body, signature))
+        {
+            throw new WebApplicationException(Response.Status.UNAUTHORIZED);
+        }
+        if (!"push".equals(event))
+        {
+            return Response.noContent().build();
+        }
+        JsonNode payload;
+        try
+        {
+            payload = OBJECT_MAPPER.readTree(body);
+        }
+        catch (IOException ex)
+        {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        JsonNode repository = payload.path("repository");
+        String repoName = repository.path("name").asText(null);
+        if (repoName == null)
+        {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        //Only the default branch holds the robot
+        if (!payload.path("ref").asText().equals("refs/heads/" + repository.path("default_branch").asText()))
+        {
+            return Response.noContent().build();
+        }
+        logger.info("Got push to {}", repoName);
+        gitPoller.enqueue(repoName);
+        return Response.accepted().build();
+    }
+}
@@ -0,0 +1,128 @@
+package com.mirado.robocode.services;
+
+import com.mirado.robocode.archaius.Config;
+import com.netflix.archaius.api.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs battles off the caller's thread, one at a time. Requests are debounced: a battle only starts once the roster
+ * has been quiet for a while, so a burst of pushes ends in one battle of the settled roster instead of one battle per
+ * intermediate roster. A steady stream of changes can only hold a battle back up to a maximum delay.
+ */
+public class BattleScheduler
+{
+    private static final Logger logger = LoggerFactory.getLogger(BattleScheduler.class);
+    private static final Property<Integer> DEBOUNCE_SECONDS = Config.getPropertyFactory().getProperty("battle.debounce_seconds").asInteger(30);
+    private static final Property<Integer> MAX_DELAY_SECONDS = Config.getPropertyFactory().getProperty("battle.max_delay_seconds").asInteger(300);
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "battle-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong superseded = new AtomicLong();
+    private final RoboService roboService;
+    private ScheduledFuture<?> pendingBattle;
+    private long generation;
+    private long pendingSinceMillis;
+    private int pendingRequests;
+    private String lastSetupId;
+
+    @Inject
+    public BattleScheduler(RoboService roboService)
+    {
+        this.roboService = roboService;
+    }
+
+    /**
+     * Asks for a battle of the current roster. Replaces the battle still waiting to start, if any.
+     */
+    public synchronized void requestBattle()
+    {
+        long now = System.currentTimeMillis();
+        long delayMillis = TimeUnit.SECONDS.toMillis(DEBOUNCE_SECONDS.get());
+        if (pendingBattle != null && pendingBattle.cancel(false))
+        {
+            superseded.incrementAndGet();
+            long deadlineMillis = pendingSinceMillis + TimeUnit.SECONDS.toMillis(MAX_DELAY_SECONDS.get());
+            delayMillis = Math.max(0, Math.min(delayMillis, deadlineMillis - now));
+        }
+        else
+        {
+            pendingSinceMillis = now;
+            pendingRequests = 0;
+        }
+        pendingRequests++;
+        long battleGeneration = ++generation;
+        pendingBattle = executor.schedule(() -> runBattle(battleGeneration), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runBattle(long battleGeneration)
+    {
+        long waitedMillis;
+        int requests;
+        synchronized (this)
+        {
+            waitedMillis = System.currentTimeMillis() - pendingSinceMillis;
+            requests = pendingRequests;
+            //A request that came in just as this started is already waiting for the next battle
+            if (battleGeneration == generation)
+            {
+                pendingBattle = null;
+                pendingRequests = 0;
+            }
+        }
+        //Robots compiled in the meantime wait for the next battle, they can't change the roster under this one
+        try (RoboService.Roster roster = roboService.lockRoster())
+        {
+            String setupId = roster.getSetupId();
+            if (setupId.equals(lastSetupId))
+            {
+                logger.info("Roster {} already battled, skipping", setupId);
+                return;
+            }
+            logger.info("Running battle {} after {} requests over {} ms", setupId, requests, waitedMillis);
+            try
+            {
+                roboService.runBattleAndUploadToS3(roster);
+                lastSetupId = setupId;
+            }
+            catch (Exception ex)
+            {
+                logger.error("Battle {} failed", setupId, ex);
+            }
+        }
+    }
+
+    /**
+     * @return number of requests coalesced into the battle waiting to start
+     */
+    public synchronized int getPendingRequests()
+    {
+        return pendingRequests;
+    }
+
+    /**
+     * @return how long the battle waiting to start has been waiting, 0 if there is none
+     */
+    public synchronized long getPendingMillis()
+    {
+        return pendingBattle == null ? 0 : System.currentTimeMillis() - pendingSinceMillis;
+    }
+
+    /**
+     * @return number of battles dropped because the roster changed before they started
+     */
+    public long getSuperseded()
+    {
+        return superseded.get();
+    }
+}
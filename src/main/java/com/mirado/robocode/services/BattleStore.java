@@ -0,0 +1,233 @@
+package com.mirado.robocode.services;
+
+import com.mirado.robocode.domain.BattleStatistics;
+import com.mirado.robocode.domain.Scoreboard;
+import robocode.control.RobotResults;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the battles and the scoreboard built from them. Appends are serialized and publish a new immutable
+ * snapshot, reads never lock and always see a consistent pair of battles and scoreboard.
+ */
+public class BattleStore
+{
+    private static final Comparator<BattleStatistics> NEWEST_FIRST = Comparator.comparing(BattleStatistics::getTimestamp).reversed();
+    private final Map<String, RobotTotals> robotTotals = new HashMap<>();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyMap(), Collections.emptyList(), Scoreboard.newBuilder().build());
+
+    /**
+     * Adds a battle unless a battle with the same key is already stored.
+     *
+     * @return false if the battle was already stored
+     */
+    public boolean append(String key, BattleStatistics battle)
+    {
+        return !appendAll(Collections.singletonMap(key, battle)).isEmpty();
+    }
+
+    /**
+     * Adds the battles that aren't stored yet and publishes one snapshot for all of them, so loading many battles
+     * doesn't rebuild the scoreboard once per battle.
+     *
+     * @return keys of the battles that were added
+     */
+    public synchronized Set<String> appendAll(Map<String, BattleStatistics> battles)
+    {
+        Snapshot current = snapshot;
+        Map<String, BattleStatistics> added = new LinkedHashMap<>();
+        for (Map.Entry<String, BattleStatistics> battle : battles.entrySet())
+        {
+            if (!current.battles.containsKey(battle.getKey()))
+            {
+                added.put(battle.getKey(), battle.getValue());
+            }
+        }
+        if (added.isEmpty())
+        {
+            return Collections.emptySet();
+        }
+        Map<String, BattleStatistics> allBattles = new HashMap<>(current.battles);
+        allBattles.putAll(added);
+        List<BattleStatistics> newBattles = new ArrayList<>(added.values());
+        newBattles.sort(NEWEST_FIRST);
+        for (BattleStatistics battle : newBattles)
+        {
+            for (RobotResults robotResults : battle.getResults())
+            {
+                robotTotals.computeIfAbsent(robotResults.getRobot().getName(), name -> new RobotTotals()).add(robotResults, battle.getTimestamp());
+            }
+        }
+        List<BattleStatistics> orderedBattles = merge(current.orderedBattles, newBattles);
+        snapshot = new Snapshot(current.version + 1, Collections.unmodifiableMap(allBattles), orderedBattles, buildScoreboard(orderedBattles));
+        return added.keySet();
+    }
+
+    public boolean contains(String key)
+    {
+        return snapshot.battles.containsKey(key);
+    }
+
+    public Map<String, BattleStatistics> getBattles()
+    {
+        return snapshot.battles;
+    }
+
+    public Scoreboard getScoreboard()
+    {
+        return snapshot.scoreboard;
+    }
+
+    /**
+     * @return number of appends so far, changes whenever the battles or the scoreboard change
+     */
+    public long getVersion()
+    {
+        return snapshot.version;
+    }
+
+    /**
+     * Merges two lists that are each ordered newest first, keeping that order without sorting the stored battles again.
+     */
+    private static List<BattleStatistics> merge(List<BattleStatistics> stored, List<BattleStatistics> added)
+    {
+        List<BattleStatistics> merged = new ArrayList<>(stored.size() + added.size());
+        int i = 0;
+        int j = 0;
+        while (i < stored.size() || j < added.size())
+        {
+            if (j == added.size() || (i < stored.size() && NEWEST_FIRST.compare(stored.get(i), added.get(j)) <= 0))
+            {
+                merged.add(stored.get(i++));
+            }
+            else
+            {
+                merged.add(added.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Builds a scoreboard from just the given battles, instead of every battle ever stored.
+     *
+     * @param keys keys of the battles to count, keys not stored are left out
+     */
+    public Scoreboard getScoreboard(Collection<String> keys)
+    {
+        Snapshot current = snapshot;
+        List<BattleStatistics> battles = new ArrayList<>();
+        for (String key : keys)
+        {
+            BattleStatistics battle = current.battles.get(key);
+            if (battle != null)
+            {
+                battles.add(battle);
+            }
+        }
+        battles.sort(NEWEST_FIRST);
+        Map<String, RobotTotals> totals = new HashMap<>();
+        for (BattleStatistics battle : battles)
+        {
+            for (RobotResults robotResults : battle.getResults())
+            {
+                totals.computeIfAbsent(robotResults.getRobot().getName(), name -> new RobotTotals()).add(robotResults, battle.getTimestamp());
+            }
+        }
+        return buildScoreboard(battles, totals.values());
+    }
+
+    private Scoreboard buildScoreboard(List<BattleStatistics> battleStatistics)
+    {
+        return buildScoreboard(battleStatistics, robotTotals.values());
+    }
+
+    private static Scoreboard buildScoreboard(List<BattleStatistics> battleStatistics, Collection<RobotTotals> robotTotals)
+    {
+        //Highest score first, robots seen most recently first when tied
+        List<RobotTotals> totals = new ArrayList<>(robotTotals);
+        totals.sort(Comparator.comparingInt((RobotTotals c) -> c.score).reversed()
+                .thenComparing(Comparator.comparing((RobotTotals c) -> c.latestTimestamp).reversed()));
+        List<RobotResults> scoreBoard = new ArrayList<>(totals.size());
+        for (int i = 0; i < totals.size(); i++)
+        {
+            scoreBoard.add(totals.get(i).toRobotResults(i + 1));
+        }
+        return Scoreboard
+                .newBuilder()
+                .battleStatistics(battleStatistics)
+                .scoreBoard(scoreBoard)
+                .build();
+    }
+
+    /**
+     * Running totals for one robot over a set of battles.
+     */
+    private static final class RobotTotals
+    {
+        private RobotResults latest;
+        private Instant latestTimestamp;
+        private int score;
+        private int survival;
+        private int lastSurvivorBonus;
+        private int bulletDamage;
+        private int bulletDamageBonus;
+        private int ramDamage;
+        private int ramDamageBonus;
+        private int firsts;
+        private int seconds;
+        private int thirds;
+
+        private void add(RobotResults results, Instant timestamp)
+        {
+            if (latestTimestamp == null || timestamp.isAfter(latestTimestamp))
+            {
+                latest = results;
+                latestTimestamp = timestamp;
+            }
+            score += results.getScore();
+            survival += results.getSurvival();
+            lastSurvivorBonus += results.getLastSurvivorBonus();
+            bulletDamage += results.getBulletDamage();
+            bulletDamageBonus += results.getBulletDamageBonus();
+            ramDamage += results.getRamDamage();
+            ramDamageBonus += results.getRamDamageBonus();
+            firsts += results.getFirsts();
+            seconds += results.getSeconds();
+            thirds += results.getThirds();
+        }
+
+        private RobotResults toRobotResults(int rank)
+        {
+            return new RobotResults(latest.getRobot(), latest.getTeamLeaderName(),
+                    rank, score, survival, lastSurvivorBonus, bulletDamage, bulletDamageBonus, ramDamage, ramDamageBonus,
+                    firsts, seconds, thirds);
+        }
+    }
+
+    private static final class Snapshot
+    {
+        private final long version;
+        private final Map<String, BattleStatistics> battles;
+        //Newest first
+        private final List<BattleStatistics> orderedBattles;
+        private final Scoreboard scoreboard;
+
+        private Snapshot(long version, Map<String, BattleStatistics> battles, List<BattleStatistics> orderedBattles, Scoreboard scoreboard)
+        {
+            this.version = version;
+            this.battles = battles;
+            this.orderedBattles = orderedBattles;
+            this.scoreboard = scoreboard;
+        }
+    }
+}
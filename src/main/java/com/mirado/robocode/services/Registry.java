@@ -0,0 +1,190 @@
+package com.mirado.robocode.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.mirado.robocode.archaius.Config;
+import com.mirado.robocode.domain.BattleSummary;
+import com.mirado.robocode.domain.RobotSpec;
+import com.netflix.archaius.api.Property;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Local record of the robots and battles, so a restart is back to serving without fetching every repository and
+ * reading every result from s3 again. An append-only log of JSON lines, synced to disk on every append. A line cut
+ * short by a crash is skipped when loading, and the log is compacted to one line per robot and battle on load.
+ */
+public class Registry
+{
+    private static final Logger logger = LoggerFactory.getLogger(Registry.class);
+    private static final Property<String> PATH = Config.getPropertyFactory().getProperty("registry.path").asString("data/registry.log");
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    private static final String ROBOT = "robot";
+    private static final String BATTLE = "battle";
+    private final File file = new File(PATH.get());
+    private FileOutputStream outputStream;
+
+    /**
+     * Reads the log and rewrites it with only the latest entries. Call before appending anything.
+     */
+    public synchronized Contents load() throws IOException
+    {
+        Map<String, RobotSpec> robots = new LinkedHashMap<>();
+        Map<String, BattleSummary> battles = new LinkedHashMap<>();
+        if (file.isFile())
+        {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+            {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null)
+                {
+                    lineNumber++;
+                    try
+                    {
+                        JsonNode entry = OBJECT_MAPPER.readTree(line);
+                        if (entry.has(ROBOT))
+                        {
+                            robots.put(entry.get("repoName").asText(), OBJECT_MAPPER.treeToValue(entry.get(ROBOT), RobotSpec.class));
+                        }
+                        else if (entry.has(BATTLE))
+                        {
+                            battles.put(entry.get("key").asText(), OBJECT_MAPPER.treeToValue(entry.get(BATTLE), BattleSummary.class));
+                        }
+                    }
+                    catch (IOException ex)
+                    {
+                        //Usually the last line, cut short by a crash while appending
+                        logger.warn("Skipping unreadable line {} of {}", lineNumber, file, ex);
+                    }
+                }
+            }
+        }
+        compact(robots, battles);
+        logger.info("Loaded {} robots and {} battles from {}", robots.size(), battles.size(), file);
+        return new Contents(robots, battles);
+    }
+
+    public void appendRobot(String repoName, RobotSpec robotSpec)
+    {
+        ObjectNode entry = OBJECT_MAPPER.createObjectNode();
+        entry.put("repoName", repoName);
+        entry.set(ROBOT, OBJECT_MAPPER.valueToTree(robotSpec));
+        append(entry);
+    }
+
+    public void appendBattle(String key, BattleSummary battleSummary)
+    {
+        ObjectNode entry = OBJECT_MAPPER.createObjectNode();
+        entry.put("key", key);
+        entry.set(BATTLE, OBJECT_MAPPER.valueToTree(battleSummary));
+        append(entry);
+    }
+
+    /**
+     * A failed append is only logged, the entry is picked up from github or s3 again after a restart.
+     */
+    private synchronized void append(ObjectNode entry)
+    {
+        try
+        {
+            if (outputStream == null)
+            {
+                FileUtils.forceMkdir(file.getAbsoluteFile().getParentFile());
+                outputStream = new FileOutputStream(file, true);
+            }
+            writeLine(outputStream, entry);
+            outputStream.getChannel().force(false);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not append to {}", file, ex);
+        }
+    }
+
+    private void compact(Map<String, RobotSpec> robots, Map<String, BattleSummary> battles) throws IOException
+    {
+        FileUtils.forceMkdir(file.getAbsoluteFile().getParentFile());
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream compacted = new FileOutputStream(temp))
+        {
+            for (Map.Entry<String, RobotSpec> robot : robots.entrySet())
+            {
+                ObjectNode entry = OBJECT_MAPPER.createObjectNode();
+                entry.put("repoName", robot.getKey());
+                entry.set(ROBOT, OBJECT_MAPPER.valueToTree(robot.getValue()));
+                writeLine(compacted, entry);
+            }
+            for (Map.Entry<String, BattleSummary> battle : battles.entrySet())
+            {
+                ObjectNode entry = OBJECT_MAPPER.createObjectNode();
+                entry.put("key", battle.getKey());
+                entry.set(BATTLE, OBJECT_MAPPER.valueToTree(battle.getValue()));
+                writeLine(compacted, entry);
+            }
+            compacted.getChannel().force(false);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (outputStream != null)
+        {
+            outputStream.close();
+            outputStream = null;
+        }
+    }
+
+    private static void writeLine(OutputStream outputStream, ObjectNode entry) throws IOException
+    {
+        byte[] line = OBJECT_MAPPER.writeValueAsBytes(entry);
+        byte[] bytes = new byte[line.length + 1];
+        System.arraycopy(line, 0, bytes, 0, line.length);
+        bytes[line.length] = '\n';
+        //One write per line so a crash can at most cut the last line short
+        outputStream.write(bytes);
+    }
+
+    public static final class Contents
+    {
+        private final Map<String, RobotSpec> robots;
+        private final Map<String, BattleSummary> battles;
+
+        private Contents(Map<String, RobotSpec> robots, Map<String, BattleSummary> battles)
+        {
+            this.robots = Collections.unmodifiableMap(robots);
+            this.battles = Collections.unmodifiableMap(battles);
+        }
+
+        /**
+         * @return robots by repository name
+         */
+        public Map<String, RobotSpec> getRobots()
+        {
+            return robots;
+        }
+
+        /**
+         * @return battles by s3 key of the recording
+         */
+        public Map<String, BattleSummary> getBattles()
+        {
+            return battles;
+        }
+    }
+}
@@ -5,8 +5,11 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.mirado.robocode.archaius.Config;
 import com.mirado.robocode.domain.RobotSpec;
-import com.mirado.robocode.engine.BattleRunner;
+import com.mirado.robocode.engine.BattleRequest;
+import com.mirado.robocode.engine.BattleWorkerPool;
+import com.mirado.robocode.engine.RecordingReader;
 import com.mirado.robocode.engine.RobotCompiler;
+import com.netflix.archaius.api.Property;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -16,18 +19,32 @@ import robocode.control.RobotResults;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 /**
  * Keeps track of the existing robots, compiles them and triggers battles.
@@ -35,27 +52,115 @@ import java.util.TreeSet;
 public class RoboService
 {
     private static final Logger logger = LoggerFactory.getLogger(RoboService.class);
+    private static final Property<String> BATTLE_MODE = Config.getPropertyFactory().getProperty("battle.mode").asString("melee");
+    private static final Property<Integer> HEAT_SIZE = Config.getPropertyFactory().getProperty("battle.heat_size").asInteger(10);
+    private static final Property<Integer> HEAT_FINALISTS = Config.getPropertyFactory().getProperty("battle.heat_finalists").asInteger(3);
+    private static final String PAIRWISE = "pairwise";
+    private static final String HEATS = "heats";
+    private static final String RUNS_PREFIX = "runs/";
     private static final File robotsDirectory = new File("robots");
     private static final File clojureClassesDirectory = Paths.get(robotsDirectory.getAbsolutePath(), "classes").toFile();
-    private final Map<String, RobotSpec> robots = new HashMap<>();
+    private final Map<String, RobotSpec> robots = new ConcurrentHashMap<>();
     private final AmazonS3Client amazonS3Client;
     private final RobotCompiler robotCompiler;
     private final ScoreService scoreService;
-    private final BattleRunner battleRunner;
+    private final BattleWorkerPool battleWorkerPool;
+    private final NotificationService notificationService;
+    private final Registry registry;
+    private final ReentrantReadWriteLock rosterLock = new ReentrantReadWriteLock();
 
     @Inject
-    public RoboService(AmazonS3Client amazonS3Client, RobotCompiler robotCompiler, ScoreService scoreService, BattleRunner battleRunner)
+    public RoboService(AmazonS3Client amazonS3Client, RobotCompiler robotCompiler, ScoreService scoreService, BattleWorkerPool battleWorkerPool, NotificationService notificationService, Registry registry)
     {
+        this.registry = registry;
         this.amazonS3Client = amazonS3Client;
         this.robotCompiler = robotCompiler;
         this.scoreService = scoreService;
-        this.battleRunner = battleRunner;
+        this.battleWorkerPool = battleWorkerPool;
+        this.notificationService = notificationService;
     }
 
     public void putRobotAndRecompile(String repoName, RobotSpec robotSpec) throws IOException, InterruptedException
     {
-        robots.put(repoName, robotSpec);
-        recompile(robotSpec);
+        putRobotsAndRecompile(Collections.singletonMap(repoName, robotSpec));
+    }
+
+    /**
+     * Stores and compiles a batch of robots, then reports which of them compiled.
+     *
+     * @param robotSpecs robots by repository name
+     */
+    public void putRobotsAndRecompile(Map<String, RobotSpec> robotSpecs) throws IOException, InterruptedException
+    {
+        for (Map.Entry<String, RobotSpec> entry : robotSpecs.entrySet())
+        {
+            registry.appendRobot(entry.getKey(), entry.getValue());
+        }
+        compile(robotSpecs, true);
+    }
+
+    /**
+     * Puts back robots loaded from the registry. Their classes usually come straight out of the compile cache.
+     *
+     * @param robotSpecs robots by repository name
+     */
+    public void restore(Map<String, RobotSpec> robotSpecs) throws IOException, InterruptedException
+    {
+        compile(robotSpecs, false);
+        if (PAIRWISE.equals(BATTLE_MODE.get()))
+        {
+            scoreService.setCountedBattles(getPairingKeys(new ArrayList<>(robots.values())));
+        }
+    }
+
+    private void compile(Map<String, RobotSpec> robotSpecs, boolean notify) throws IOException, InterruptedException
+    {
+        //Not while a battle is reading the robots directory
+        rosterLock.writeLock().lock();
+        try
+        {
+            compileLocked(robotSpecs, notify);
+        }
+        finally
+        {
+            rosterLock.writeLock().unlock();
+        }
+    }
+
+    private void compileLocked(Map<String, RobotSpec> robotSpecs, boolean notify) throws IOException, InterruptedException
+    {
+        Map<File, RobotSpec> sourceFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, RobotSpec> entry : robotSpecs.entrySet())
+        {
+            robots.put(entry.getKey(), entry.getValue());
+            sourceFiles.put(writeSource(entry.getValue()), entry.getValue());
+        }
+        Map<File, Boolean> compiled = robotCompiler.compileAll(sourceFiles);
+        List<String> fullClassNames = new ArrayList<>();
+        for (RobotSpec robotSpec : sourceFiles.values())
+        {
+            fullClassNames.add(getFullClassName(robotSpec));
+        }
+        battleWorkerPool.robotsChanged(fullClassNames);
+        List<String> succeeded = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<File, Boolean> entry : compiled.entrySet())
+        {
+            String name = sourceFiles.get(entry.getKey()).getName();
+            if (entry.getValue())
+            {
+                succeeded.add(name);
+            }
+            else
+            {
+                failed.add(name);
+            }
+        }
+        logger.info("Compiled {}, failed {}", succeeded, failed);
+        if (notify)
+        {
+            notificationService.notify("Compiled robots " + succeeded + (failed.isEmpty() ? "" : ", failed to compile " + failed));
+        }
     }
 
     public RobotSpec getRobot(String repoName)
@@ -63,29 +168,277 @@ public class RoboService
         return robots.get(repoName);
     }
 
-    public void runBattleAndUploadToS3() throws IOException
+    /**
+     * Takes the roster as it is now and keeps it that way, robots are only stored and compiled again once the roster
+     * is closed. Hold it from choosing the battle until the battle is over, so the robots that fight are the ones the
+     * battle is stored as.
+     */
+    public Roster lockRoster()
+    {
+        rosterLock.readLock().lock();
+        List<RobotSpec> robotSpecs = new ArrayList<>(robots.values());
+        return new Roster(getSetupId(robotSpecs), robotSpecs, rosterLock.readLock());
+    }
+
+    /**
+     * @param roster the locked roster to battle
+     */
+    public void runBattleAndUploadToS3(Roster roster) throws IOException
     {
-        String id = getCurrentSetupId();
-        String s3Key = "runs/" + id;
-        String s3Bucket = Config.getS3Bucket();
-        if (amazonS3Client.doesObjectExist(s3Bucket, s3Key))
+        if (PAIRWISE.equals(BATTLE_MODE.get()))
+        {
+            runPairwiseTournament(roster.getRobots());
+            return;
+        }
+        scoreService.setCountedBattles(null);
+        if (HEATS.equals(BATTLE_MODE.get()))
+        {
+            runHeats(roster.getRobots());
+            return;
+        }
+        String id = roster.getSetupId();
+        String s3Key = RUNS_PREFIX + id;
+        if (amazonS3Client.doesObjectExist(Config.getS3Bucket(), s3Key))
         {
             logger.info("Not running battle {} because it's already on s3 at {}", id, s3Key);
             return;
         }
-        Pair<List<RobotResults>, File> pair = battleRunner.runBattle();
+        Pair<List<RobotResults>, File> pair = battleWorkerPool.runBattle();
         if (pair == null)
         {
             throw new RuntimeException("No output from running battle");
         }
-        File file = pair.getRight();
+        uploadAndPublish(id, pair);
+    }
+
+    /**
+     * Battles every robot against every other robot one on one. Each pairing is stored as a battle of its own, keyed
+     * by the exact sources of the two robots, so when one robot changes only its pairings are fought again.
+     */
+    private void runPairwiseTournament(List<RobotSpec> robotSpecs) throws IOException
+    {
+        List<RobotSpec> roster = new ArrayList<>(robotSpecs);
+        roster.sort(Comparator.comparing(RoboService::getFullClassName));
+        Map<String, CompletableFuture<Pair<List<RobotResults>, File>>> battles = new LinkedHashMap<>();
+        int pairings = 0;
+        for (int i = 0; i < roster.size(); i++)
+        {
+            for (int j = i + 1; j < roster.size(); j++)
+            {
+                pairings++;
+                String id = getSetupId(Arrays.asList(roster.get(i), roster.get(j)));
+                if (scoreService.hasBattle(RUNS_PREFIX + id))
+                {
+                    continue;
+                }
+                BattleRequest battleRequest = battleWorkerPool
+                        .newBattleRequest()
+                        .robots(getFullClassName(roster.get(i)) + "," + getFullClassName(roster.get(j)))
+                        .build();
+                battles.put(id, battleWorkerPool.submitBattle(battleRequest));
+            }
+        }
+        logger.info("Running {} of {} pairings, the rest are cached", battles.size(), pairings);
+        scoreService.setCountedBattles(getPairingKeys(roster));
+        for (Map.Entry<String, CompletableFuture<Pair<List<RobotResults>, File>>> battle : battles.entrySet())
+        {
+            Pair<List<RobotResults>, File> pair;
+            try
+            {
+                pair = battle.getValue().join();
+            }
+            catch (CompletionException ex)
+            {
+                logger.error("Pairing {} failed", battle.getKey(), ex.getCause());
+                continue;
+            }
+            if (pair == null)
+            {
+                logger.error("No output from pairing {}", battle.getKey());
+                continue;
+            }
+            uploadAndPublish(battle.getKey(), pair);
+        }
+    }
+
+    /**
+     * @return s3 keys of the battles between every two robots of the roster
+     */
+    private static List<String> getPairingKeys(List<RobotSpec> roster)
+    {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < roster.size(); i++)
+        {
+            for (int j = i + 1; j < roster.size(); j++)
+            {
+                keys.add(RUNS_PREFIX + getSetupId(Arrays.asList(roster.get(i), roster.get(j))));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Splits the roster into heats of at most {@code battle.heat_size} robots and promotes the best of every heat to
+     * the next stage until one heat, the final, is left. Heats of a stage run in parallel. Robots are seeded by their
+     * rank on the scoreboard and every stage is reseeded by how the robots did in their heats, then dealt out so every
+     * heat gets a fair share of strong and weak robots.
+     */
+    private void runHeats(List<RobotSpec> robotSpecs) throws IOException
+    {
+        Map<String, Integer> seeds = new HashMap<>();
+        List<RobotResults> scoreBoard = scoreService.getStatistics().getScoreBoard();
+        for (int i = 0; i < scoreBoard.size(); i++)
+        {
+            seeds.putIfAbsent(scoreBoard.get(i).getRobot().getClassName(), i);
+        }
+        List<RobotSpec> field = new ArrayList<>(robotSpecs);
+        field.sort(Comparator.comparing((RobotSpec robotSpec) -> seeds.getOrDefault(getFullClassName(robotSpec), Integer.MAX_VALUE))
+                .thenComparing(RoboService::getFullClassName));
+        int heatSize = Math.max(2, HEAT_SIZE.get());
+        for (int stage = 1; field.size() > 1; stage++)
+        {
+            List<List<RobotSpec>> heats = splitIntoHeats(field, heatSize);
+            logger.info("Stage {} of heats: {} robots in {} heats", stage, field.size(), heats.size());
+            List<String> ids = new ArrayList<>();
+            List<BattleRequest> battleRequests = new ArrayList<>();
+            List<CompletableFuture<Pair<List<RobotResults>, File>>> battles = new ArrayList<>();
+            for (List<RobotSpec> heat : heats)
+            {
+                String id = getSetupId(heat);
+                ids.add(id);
+                BattleRequest battleRequest = battleWorkerPool
+                        .newBattleRequest()
+                        .robots(heat.stream().map(RoboService::getFullClassName).collect(Collectors.joining(",")))
+                        .build();
+                battleRequests.add(battleRequest);
+                battles.add(scoreService.hasBattle(RUNS_PREFIX + id) ? null : battleWorkerPool.submitBattle(battleRequest));
+            }
+            //Everyone promoted from a heat, best first, so the next stage is seeded by heat placing
+            List<List<RobotResults>> placings = new ArrayList<>();
+            List<String> failedHeats = new ArrayList<>();
+            for (int i = 0; i < heats.size(); i++)
+            {
+                List<RobotResults> results = getHeatResults(ids.get(i), battles.get(i));
+                if (results == null)
+                {
+                    logger.info("Running heat {} again", ids.get(i));
+                    results = getHeatResults(ids.get(i), battleWorkerPool.submitBattle(battleRequests.get(i)));
+                }
+                if (results == null)
+                {
+                    failedHeats.add(ids.get(i));
+                    continue;
+                }
+                results.sort(Comparator.comparingInt(RobotResults::getRank));
+                //Always leave someone behind so every stage shrinks, unless the heat had just one robot
+                int finalists = Math.min(Math.max(1, HEAT_FINALISTS.get()), Math.max(1, results.size() - 1));
+                placings.add(results.subList(0, Math.min(results.size(), finalists)));
+            }
+            if (!failedHeats.isEmpty())
+            {
+                //Crowning a winner without the robots of a heat would be wrong, the heats that were fought are cached
+                throw new IOException("Heats " + failedHeats + " of stage " + stage + " failed twice, abandoning the heats");
+            }
+            if (heats.size() == 1)
+            {
+                return;
+            }
+            Map<String, RobotSpec> byClassName = field.stream().collect(Collectors.toMap(RoboService::getFullClassName, robotSpec -> robotSpec));
+            List<RobotSpec> promoted = new ArrayList<>();
+            for (int place = 0; ; place++)
+            {
+                List<RobotResults> atPlace = new ArrayList<>();
+                for (List<RobotResults> placing : placings)
+                {
+                    if (place < placing.size())
+                    {
+                        atPlace.add(placing.get(place));
+                    }
+                }
+                if (atPlace.isEmpty())
+                {
+                    break;
+                }
+                atPlace.sort(Comparator.comparingInt(RobotResults::getScore).reversed());
+                for (RobotResults robotResults : atPlace)
+                {
+                    RobotSpec robotSpec = byClassName.get(robotResults.getRobot().getClassName());
+                    if (robotSpec != null)
+                    {
+                        promoted.add(robotSpec);
+                    }
+                }
+            }
+            field = promoted;
+        }
+    }
+
+    /**
+     * Deals the seeded field out over the heats back and forth, first seed to the first heat, second seed to the
+     * second heat and so on, then back from the last heat.
+     */
+    private static List<List<RobotSpec>> splitIntoHeats(List<RobotSpec> field, int heatSize)
+    {
+        int heatCount = (field.size() + heatSize - 1) / heatSize;
+        List<List<RobotSpec>> heats = new ArrayList<>();
+        for (int i = 0; i < heatCount; i++)
+        {
+            heats.add(new ArrayList<>());
+        }
+        for (int i = 0; i < field.size(); i++)
+        {
+            int position = i % heatCount;
+            boolean forward = (i / heatCount) % 2 == 0;
+            heats.get(forward ? position : heatCount - 1 - position).add(field.get(i));
+        }
+        return heats;
+    }
+
+    /**
+     * @param battle the running heat, null if it was fought before
+     * @return the results of the heat, null if it failed
+     */
+    private List<RobotResults> getHeatResults(String id, CompletableFuture<Pair<List<RobotResults>, File>> battle) throws IOException
+    {
+        if (battle == null)
+        {
+            return new ArrayList<>(scoreService.getBattles().get(RUNS_PREFIX + id).getResults());
+        }
+        Pair<List<RobotResults>, File> pair;
+        try
+        {
+            pair = battle.join();
+        }
+        catch (CompletionException ex)
+        {
+            logger.error("Heat {} failed", id, ex.getCause());
+            return null;
+        }
+        if (pair == null)
+        {
+            logger.error("No output from heat {}", id);
+            return null;
+        }
+        uploadAndPublish(id, pair);
+        return new ArrayList<>(pair.getLeft());
+    }
+
+    private void uploadAndPublish(String id, Pair<List<RobotResults>, File> pair) throws IOException
+    {
+        String s3Key = RUNS_PREFIX + id;
         Instant timestamp = Instant.now();
         ObjectMetadata objectMetadata = new ObjectMetadata();
         objectMetadata.addUserMetadata("timestamp", timestamp.toString());
-        PutObjectRequest putObjectRequest = new PutObjectRequest(s3Bucket, s3Key, file)
+        PutObjectRequest putObjectRequest = new PutObjectRequest(Config.getS3Bucket(), s3Key, pair.getRight())
                 .withMetadata(objectMetadata);
         amazonS3Client.putObject(putObjectRequest);
-        scoreService.storeResult(s3Key, pair.getKey(), timestamp);
+        //Adaptive rounds and shards only keep part of the battle in the recording
+        int recordedRounds;
+        try (InputStream inputStream = new FileInputStream(pair.getRight()))
+        {
+            recordedRounds = ScoreService.countRounds(RecordingReader.readResults(inputStream));
+        }
+        scoreService.publishResult(s3Key, id, pair.getLeft(), timestamp, recordedRounds);
     }
 
     /**
@@ -93,10 +446,10 @@ public class RoboService
      *
      * @return base64 md5 id
      */
-    private String getCurrentSetupId()
+    private static String getSetupId(Collection<RobotSpec> robotSpecs)
     {                   //Make sure order doesn't matter
         Set<String> sources = new TreeSet<>();
-        for (RobotSpec s : robots.values())
+        for (RobotSpec s : robotSpecs)
         {
             sources.add(s.getClassName() + s.getSource());
         }
@@ -108,7 +461,17 @@ public class RoboService
         return DigestUtils.md5Hex(stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
     }
 
-    private void recompile(RobotSpec robotSpec) throws IOException, InterruptedException
+    private static String getFullClassName(RobotSpec robotSpec)
+    {
+        return robotSpec.getPackageName().isEmpty() ? robotSpec.getClassName() : robotSpec.getPackageName() + "." + robotSpec.getClassName();
+    }
+
+    /**
+     * Writes the source and properties of a robot to the robots directory.
+     *
+     * @return the source file
+     */
+    private File writeSource(RobotSpec robotSpec) throws IOException
     {
         String relativePath = robotSpec.getPackageName().replace('.', '/') + "/" + robotSpec.getClassName() + robotSpec.getSourceLanguage().getExtension();
         Path path = Paths.get(robotsDirectory.getAbsolutePath(), relativePath);
@@ -135,7 +498,40 @@ public class RoboService
         {
             properties.store(fileWriter, "");
         }
-        robotCompiler.compile(file, robotSpec.getSourceLanguage());
+        return file;
+    }
+
+    /**
+     * The robots of a battle, kept from changing until closed.
+     */
+    public static final class Roster implements AutoCloseable
+    {
+        private final String setupId;
+        private final List<RobotSpec> robots;
+        private final Lock lock;
+
+        private Roster(String setupId, List<RobotSpec> robots, Lock lock)
+        {
+            this.setupId = setupId;
+            this.robots = Collections.unmodifiableList(robots);
+            this.lock = lock;
+        }
+
+        public String getSetupId()
+        {
+            return setupId;
+        }
+
+        public List<RobotSpec> getRobots()
+        {
+            return robots;
+        }
+
+        @Override
+        public void close()
+        {
+            lock.unlock();
+        }
     }
 
     static
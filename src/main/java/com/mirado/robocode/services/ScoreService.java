@@ -3,14 +3,20 @@ package com.mirado.robocode.services;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.mirado.robocode.archaius.Config;
 import com.mirado.robocode.domain.BattleStatistics;
+import com.mirado.robocode.domain.BattleSummary;
+import com.mirado.robocode.domain.RobotScore;
 import com.mirado.robocode.domain.Scoreboard;
-import com.mirado.robocode.engine.BattleRunner;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
+import com.mirado.robocode.engine.RecordingReader;
+import net.sf.robocode.security.IHiddenSpecificationHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import robocode.BattleResults;
@@ -18,36 +24,59 @@ import robocode.control.RobotResults;
 import robocode.control.RobotSpecification;
 
 import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 /**
- * Checks S3 for replay files, replays them and tracks the overall scoreboard
+ * Checks S3 for battle results and tracks the overall scoreboard
  */
 public class ScoreService
 {
     private static final Logger logger = LoggerFactory.getLogger(ScoreService.class);
     private final Timer timer = new Timer(true);
     private final AmazonS3Client s3client;
-    private final Map<String, BattleStatistics> battles = new HashMap<>();
-    private final BattleRunner battleRunner;
+    private static final String RUNS_PREFIX = "runs/";
+    private static final String RESULTS_PREFIX = "results/";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    private static final IHiddenSpecificationHelper SPECIFICATION_HELPER = createSpecificationHelper();
+    private final BattleStore battleStore = new BattleStore();
+    private final Registry registry;
+    private volatile Collection<String> countedBattles;
+    private volatile CountedScoreboard countedScoreboard;
 
     @Inject
-    public ScoreService(AmazonS3Client s3client, BattleRunner battleRunner)
+    public ScoreService(AmazonS3Client s3client, Registry registry)
     {
         this.s3client = s3client;
-        this.battleRunner = battleRunner;
+        this.registry = registry;
+    }
+
+    /**
+     * Adds battles loaded from the registry to the scoreboard, without writing them back to it.
+     *
+     * @param battles battles by s3 key of the recording
+     */
+    public void restore(Map<String, BattleSummary> battles)
+    {
+        Map<String, BattleStatistics> battleStatistics = new LinkedHashMap<>();
+        for (Map.Entry<String, BattleSummary> battle : battles.entrySet())
+        {
+            battleStatistics.put(battle.getKey(), toBattleStatistics(toRobotResults(battle.getValue()), battle.getValue().getTimestamp()));
+        }
+        battleStore.appendAll(battleStatistics);
     }
 
     public void start()
@@ -66,122 +95,286 @@ public class ScoreService
     private void run()
     {
         String bucket = Config.getS3Bucket();
-        final ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix("runs/");
-        ListObjectsV2Result result;
-        do
+        //Stored together at the end, so a backfill of many battles builds the scoreboard once
+        Map<String, BattleSummary> found = new LinkedHashMap<>();
+        for (S3ObjectSummary objectSummary : listObjects(bucket, RESULTS_PREFIX))
         {
-            result = s3client.listObjectsV2(req);
-
-            for (S3ObjectSummary objectSummary :
-                    result.getObjectSummaries())
+            try
+            {
+                String key = getRunKey(objectSummary.getKey());
+                if (battleStore.contains(key))
+                {
+                    continue;
+                }
+                BattleSummary battleSummary;
+                try (S3Object s3Object = s3client.getObject(bucket, objectSummary.getKey()))
+                {
+                    battleSummary = OBJECT_MAPPER.readValue(s3Object.getObjectContent(), BattleSummary.class);
+                }
+                found.put(key, battleSummary);
+            }
+            catch (Exception ex)
+            {
+                logger.error("Error when reading results {}", objectSummary.getKey(), ex);
+            }
+        }
+        //Recordings uploaded before there were results sidecars
+        for (S3ObjectSummary objectSummary : listObjects(bucket, RUNS_PREFIX))
+        {
+            try
             {
-                try
+                if (objectSummary.getSize() == 0)
+                {
+                    continue;
+                }
+                String key = objectSummary.getKey();
+                if (battleStore.contains(key) || found.containsKey(key))
                 {
-                    if (objectSummary.getSize() == 0)
-                    {
-                        continue;
-                    }
-                    String key = objectSummary.getKey();
-                    if (battles.containsKey(key))
-                    {
-                        continue;
-                    }
-                    S3Object s3Object = s3client.getObject(bucket, key);
-                    byte[] bytes;
-                    try (InputStream inputStream = s3Object.getObjectContent())
-                    {
-                        int length = (int) s3Object.getObjectMetadata().getContentLength();
-                        bytes = IOUtils.readFully(inputStream, length);
-                    }
-                    triggerReplay(key, bytes, Instant.parse(s3Object.getObjectMetadata().getUserMetadata().get("timestamp")));
+                    continue;
                 }
-                catch (Exception ex)
+                S3Object s3Object = s3client.getObject(bucket, key);
+                List<RobotResults> results;
+                try (S3ObjectInputStream inputStream = s3Object.getObjectContent())
                 {
-                    logger.error("Error when running item", ex);
+                    results = RecordingReader.readResults(inputStream);
+                    //Only the header is needed, don't download the rest of the recording
+                    inputStream.abort();
                 }
+                Instant timestamp = Instant.parse(s3Object.getObjectMetadata().getUserMetadata().get("timestamp"));
+                BattleSummary battleSummary = BattleSummary
+                        .newBuilder(toBattleSummary(key.substring(RUNS_PREFIX.length()), results, timestamp))
+                        .recordedRounds(countRounds(results))
+                        .build();
+                uploadSummary(key, battleSummary);
+                found.put(key, battleSummary);
             }
+            catch (Exception ex)
+            {
+                logger.error("Error when running item", ex);
+            }
+        }
+        storeResults(found);
+    }
+
+    private List<S3ObjectSummary> listObjects(String bucket, String prefix)
+    {
+        List<S3ObjectSummary> objectSummaries = new ArrayList<>();
+        final ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+        ListObjectsV2Result result;
+        do
+        {
+            result = s3client.listObjectsV2(req);
+            objectSummaries.addAll(result.getObjectSummaries());
             req.setContinuationToken(result.getNextContinuationToken());
         } while (result.isTruncated());
+        return objectSummaries;
+    }
+
+    /**
+     * Uploads the results sidecar for a recording and adds the battle to the scoreboard.
+     *
+     * @param key       s3 key of the recording
+     * @param setupId   id of the robot setup that fought the battle
+     * @param results   results of the battle
+     * @param timestamp when the battle was fought
+     * @param recordedRounds rounds in the recording, fewer than in the results when only part was recorded
+     */
+    void publishResult(String key, String setupId, List<RobotResults> results, Instant timestamp, int recordedRounds) throws IOException
+    {
+        BattleSummary battleSummary = BattleSummary
+                .newBuilder(toBattleSummary(setupId, results, timestamp))
+                .recordedRounds(recordedRounds)
+                .build();
+        uploadSummary(key, battleSummary);
+        if (appendBattle(key, results, timestamp))
+        {
+            registry.appendBattle(key, battleSummary);
+        }
+    }
+
+    private void uploadSummary(String key, BattleSummary battleSummary) throws IOException
+    {
+        byte[] bytes = OBJECT_MAPPER.writeValueAsBytes(battleSummary);
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType("application/json");
+        objectMetadata.setContentLength(bytes.length);
+        s3client.putObject(Config.getS3Bucket(), getResultsKey(key), new ByteArrayInputStream(bytes), objectMetadata);
+    }
+
+    private static BattleSummary toBattleSummary(String setupId, List<RobotResults> results, Instant timestamp)
+    {
+        return BattleSummary
+                .newBuilder()
+                .setupId(setupId)
+                .timestamp(timestamp)
+                .results(results.stream().map(ScoreService::toRobotScore).collect(Collectors.toList()))
+                .rounds(countRounds(results))
+                .build();
     }
 
-    private void triggerReplay(String key, byte[] replayBytes, Instant timestamp) throws IOException
+    /**
+     * Every round has exactly one winner, so the firsts add up to the rounds fought.
+     */
+    static int countRounds(List<RobotResults> results)
     {
-        List<RobotResults> results = battleRunner.replay(replayBytes);
-        storeResult(key, results, timestamp);
+        int rounds = 0;
+        for (RobotResults robotResults : results)
+        {
+            rounds += robotResults.getFirsts();
+        }
+        return rounds;
     }
 
-    void storeResult(String key, List<RobotResults> results, Instant timestamp)
+    private static String getResultsKey(String runKey)
+    {
+        return RESULTS_PREFIX + runKey.substring(RUNS_PREFIX.length()) + ".json";
+    }
+
+    private static String getRunKey(String resultsKey)
+    {
+        return RUNS_PREFIX + resultsKey.substring(RESULTS_PREFIX.length(), resultsKey.length() - ".json".length());
+    }
+
+    private static RobotScore toRobotScore(RobotResults results)
+    {
+        RobotSpecification robot = results.getRobot();
+        return RobotScore
+                .newBuilder()
+                .name(robot.getName())
+                .version(robot.getVersion())
+                .className(robot.getClassName())
+                .author(robot.getAuthorName())
+                .teamLeaderName(results.getTeamLeaderName())
+                .rank(results.getRank())
+                .score(results.getScore())
+                .survival(results.getSurvival())
+                .lastSurvivorBonus(results.getLastSurvivorBonus())
+                .bulletDamage(results.getBulletDamage())
+                .bulletDamageBonus(results.getBulletDamageBonus())
+                .ramDamage(results.getRamDamage())
+                .ramDamageBonus(results.getRamDamageBonus())
+                .firsts(results.getFirsts())
+                .seconds(results.getSeconds())
+                .thirds(results.getThirds())
+                .build();
+    }
+
+    private static List<RobotResults> toRobotResults(BattleSummary battleSummary)
+    {
+        List<RobotResults> results = new ArrayList<>();
+        for (RobotScore robotScore : battleSummary.getResults())
+        {
+            RobotSpecification robot = SPECIFICATION_HELPER.createSpecification(null, robotScore.getName(),
+                    robotScore.getAuthor(), null, robotScore.getVersion(), null, "", robotScore.getClassName(), null);
+            results.add(new RobotResults(robot, robotScore.getTeamLeaderName(), robotScore.getRank(),
+                    robotScore.getScore(), robotScore.getSurvival(), robotScore.getLastSurvivorBonus(),
+                    robotScore.getBulletDamage(), robotScore.getBulletDamageBonus(), robotScore.getRamDamage(),
+                    robotScore.getRamDamageBonus(), robotScore.getFirsts(), robotScore.getSeconds(), robotScore.getThirds()));
+        }
+        return results;
+    }
+
+    /**
+     * RobotSpecification can only be created through a hidden helper inside robocode.
+     */
+    private static IHiddenSpecificationHelper createSpecificationHelper()
+    {
+        try
+        {
+            Method method = RobotSpecification.class.getDeclaredMethod("createHiddenHelper");
+            method.setAccessible(true);
+            return (IHiddenSpecificationHelper) method.invoke(null);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Stores the battles found in s3 and records the new ones in the registry.
+     */
+    private void storeResults(Map<String, BattleSummary> battles)
+    {
+        Map<String, BattleStatistics> battleStatistics = new LinkedHashMap<>();
+        for (Map.Entry<String, BattleSummary> battle : battles.entrySet())
+        {
+            battleStatistics.put(battle.getKey(), toBattleStatistics(toRobotResults(battle.getValue()), battle.getValue().getTimestamp()));
+        }
+        for (String key : battleStore.appendAll(battleStatistics))
+        {
+            registry.appendBattle(key, battles.get(key));
+        }
+    }
+
+    private boolean appendBattle(String key, List<RobotResults> results, Instant timestamp)
+    {
+        return battleStore.append(key, toBattleStatistics(results, timestamp));
+    }
+
+    private static BattleStatistics toBattleStatistics(List<RobotResults> results, Instant timestamp)
     {
         results.sort(Comparator.comparing(BattleResults::getRank));
-        battles.put(key, BattleStatistics
+        return BattleStatistics
                 .newBuilder()
                 .results(results)
                 .timestamp(timestamp)
-                .build());
+                .build();
+    }
+
+    /**
+     * @param key s3 key of the recording
+     */
+    boolean hasBattle(String key)
+    {
+        return battleStore.contains(key);
     }
 
     public Map<String, BattleStatistics> getBattles()
     {
-        return Collections.unmodifiableMap(battles);
+        return battleStore.getBattles();
+    }
+
+    /**
+     * Limits the scoreboard to the given battles, as in a tournament of pairings where only the pairings of the
+     * current robots count and those against versions since replaced don't.
+     *
+     * @param keys s3 keys of the recordings of the battles that count, null to count every battle
+     */
+    void setCountedBattles(Collection<String> keys)
+    {
+        countedBattles = keys == null ? null : new ArrayList<>(keys);
     }
 
     public Scoreboard getStatistics()
     {
-        List<BattleStatistics> battleStatistics = new ArrayList<>(battles.values());
-        battleStatistics.sort(Comparator.comparing(BattleStatistics::getTimestamp));
-        Collections.reverse(battleStatistics);
-        List<String> robotNames = battleStatistics
-                .stream()
-                .flatMap(c -> c.getResults().stream())
-                .map(RobotResults::getRobot)
-                .map(RobotSpecification::getName)
-                .distinct()
-                .collect(Collectors.toList());
-        List<Pair<String, Integer>> scoresPerRobot = robotNames
-                .stream()
-                .map(name -> Pair.of(name, getStatisticsForRobot(battleStatistics, name)
-                        .stream()
-                        .mapToInt(BattleResults::getScore)
-                        .sum()))
-                .sorted(Comparator.comparingInt((ToIntFunction<Pair<String, Integer>>) Pair::getRight).reversed())
-                .collect(Collectors.toList());
-
-        List<RobotResults> scoreBoard = new ArrayList<>();
-        for (String robotName : robotNames)
+        Collection<String> keys = countedBattles;
+        if (keys == null)
         {
-            List<RobotResults> robotStats = getStatisticsForRobot(battleStatistics, robotName);
-            RobotResults robotResults = robotStats.get(0);
-            int rank = scoresPerRobot.indexOf(scoresPerRobot.stream().filter(c -> c.getLeft().equals(robotName)).findAny().get()) + 1;
-            int score = robotStats.stream().mapToInt(BattleResults::getScore).sum();
-            int survival = robotStats.stream().mapToInt(BattleResults::getSurvival).sum();
-            int lastSurvivorBonus = robotStats.stream().mapToInt(BattleResults::getLastSurvivorBonus).sum();
-            int bulletDamage = robotStats.stream().mapToInt(BattleResults::getBulletDamage).sum();
-            int bulletDamageBonus = robotStats.stream().mapToInt(BattleResults::getBulletDamageBonus).sum();
-            int ramDamage = robotStats.stream().mapToInt(BattleResults::getRamDamage).sum();
-            int ramDamageBonus = robotStats.stream().mapToInt(BattleResults::getRamDamageBonus).sum();
-            int firsts = robotStats.stream().mapToInt(BattleResults::getFirsts).sum();
-            int seconds = robotStats.stream().mapToInt(BattleResults::getSeconds).sum();
-            int thirds = robotStats.stream().mapToInt(BattleResults::getThirds).sum();
-            scoreBoard.add(new RobotResults(
-                    robotResults.getRobot(),
-                    robotResults.getTeamLeaderName(),
-                    rank, score, survival, lastSurvivorBonus, bulletDamage, bulletDamageBonus, ramDamage, ramDamageBonus,
-                    firsts, seconds, thirds));
+            return battleStore.getScoreboard();
         }
-        scoreBoard.sort(Comparator.comparing(BattleResults::getRank));
-        return Scoreboard
-                .newBuilder()
-                .battleStatistics(battleStatistics)
-                .scoreBoard(scoreBoard)
-                .build();
+        //Rebuilt only when battles were stored since, not on every read
+        CountedScoreboard counted = countedScoreboard;
+        long version = battleStore.getVersion();
+        if (counted == null || counted.keys != keys || counted.version != version)
+        {
+            counted = new CountedScoreboard(keys, version, battleStore.getScoreboard(keys));
+            countedScoreboard = counted;
+        }
+        return counted.scoreboard;
     }
 
-    private static List<RobotResults> getStatisticsForRobot(List<BattleStatistics> battleStatistics, String robotName)
+    private static final class CountedScoreboard
     {
-        return battleStatistics
-                .stream()
-                .flatMap(c -> c.getResults().stream())
-                .filter(c -> c.getRobot().getName().equals(robotName))
-                .collect(Collectors.toList());
+        private final Collection<String> keys;
+        private final long version;
+        private final Scoreboard scoreboard;
+
+        private CountedScoreboard(Collection<String> keys, long version, Scoreboard scoreboard)
+        {
+            this.keys = keys;
+            this.version = version;
+            this.scoreboard = scoreboard;
+        }
     }
 }
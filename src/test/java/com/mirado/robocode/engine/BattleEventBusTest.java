@@ -0,0 +1,164 @@
+package com.mirado.robocode.engine;
+
+import org.junit.Test;
+import robocode.control.events.BattleAdaptor;
+import robocode.control.events.BattleMessageEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes from several threads at once, the way the engine, robot and host threads do, into a small ring.
+ */
+public class BattleEventBusTest
+{
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 20000;
+    private static final int TOTAL = PRODUCERS * EVENTS_PER_PRODUCER;
+
+    @Test(timeout = 60000)
+    public void blockDeliversEveryEventInOrderPerProducer() throws Exception
+    {
+        BattleEventBus bus = new BattleEventBus(16, false);
+        RecordingListener slow = new RecordingListener(100);
+        RecordingListener fast = new RecordingListener(0);
+        bus.addConsumer("slow", slow);
+        bus.addConsumer("fast", fast);
+        publishConcurrently(bus);
+        slow.await(TOTAL);
+        fast.await(TOTAL);
+        assertNull(slow.failure.get());
+        assertNull(fast.failure.get());
+        assertEquals(TOTAL, slow.received.get());
+        assertEquals(TOTAL, fast.received.get());
+        assertEquals(0, bus.getDropped());
+    }
+
+    @Test(timeout = 60000)
+    public void dropLosesNoEventUnaccounted() throws Exception
+    {
+        BattleEventBus bus = new BattleEventBus(16, true);
+        RecordingListener slow = new RecordingListener(10);
+        bus.addConsumer("slow", slow);
+        publishConcurrently(bus);
+        //Whatever the consumer didn't get has to be counted as dropped
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (slow.received.get() + bus.getDropped() < TOTAL && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertNull(slow.failure.get());
+        assertEquals(TOTAL, slow.received.get() + bus.getDropped());
+        assertTrue("Expected the slow consumer to fall behind", bus.getDropped() > 0);
+    }
+
+    @Test(timeout = 60000)
+    public void failingConsumerDoesNotHoldUpPublishing() throws Exception
+    {
+        BattleEventBus bus = new BattleEventBus(4, false);
+        bus.addConsumer("failing", new BattleAdaptor()
+        {
+            @Override
+            public void onBattleMessage(BattleMessageEvent event)
+            {
+                throw new AssertionError("Listener failed");
+            }
+        });
+        RecordingListener healthy = new RecordingListener(0);
+        bus.addConsumer("healthy", healthy);
+        publishConcurrently(bus);
+        healthy.await(TOTAL);
+        assertEquals(TOTAL, healthy.received.get());
+    }
+
+    private static void publishConcurrently(BattleEventBus bus) throws InterruptedException
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++)
+        {
+            int producer = i;
+            Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+                for (int event = 0; event < EVENTS_PER_PRODUCER; event++)
+                {
+                    bus.onBattleMessage(new BattleMessageEvent(producer + ":" + event));
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        start.countDown();
+        for (Thread producer : producers)
+        {
+            producer.join();
+        }
+    }
+
+    /**
+     * Checks that the events of every producer come in the order they were published, with none repeated.
+     */
+    private static final class RecordingListener extends BattleAdaptor
+    {
+        private final int pauseEvery;
+        private final int[] lastEvent = new int[PRODUCERS];
+        private final AtomicInteger received = new AtomicInteger();
+        private final AtomicReference<String> failure = new AtomicReference<>();
+
+        private RecordingListener(int pauseEvery)
+        {
+            this.pauseEvery = pauseEvery;
+            Arrays.fill(lastEvent, -1);
+        }
+
+        @Override
+        public void onBattleMessage(BattleMessageEvent event)
+        {
+            String[] parts = event.getMessage().split(":");
+            int producer = Integer.parseInt(parts[0]);
+            int number = Integer.parseInt(parts[1]);
+            if (number <= lastEvent[producer])
+            {
+                failure.compareAndSet(null, "Producer " + producer + " event " + number + " after " + lastEvent[producer]);
+            }
+            lastEvent[producer] = number;
+            if (pauseEvery > 0 && received.get() % pauseEvery == 0)
+            {
+                try
+                {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            received.incrementAndGet();
+        }
+
+        private void await(int events) throws InterruptedException
+        {
+            while (received.get() < events)
+            {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.mirado.robocode.git;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class GitPollerTest
+{
+    @Test
+    public void robotsNamedLikeTestsAreNotRankedAsTests()
+    {
+        for (String robot : new String[]{"src/TestBot.java", "src/Tester.java", "src/Testudo.java", "src/contest.java"})
+        {
+            assertTrue(robot, GitPoller.getCandidateRank(robot) < GitPoller.getCandidateRank("src/RobotTest.java"));
+        }
+    }
+
+    @Test
+    public void testsAreRankedBelowRobots()
+    {
+        int robot = GitPoller.getCandidateRank("src/deep/package/name/MyRobot.java");
+        for (String test : new String[]{"src/RobotTest.java", "src/RobotTests.java", "src/robot_test.clj", "src/test/TestHelper.java", "tests/Helper.java"})
+        {
+            assertTrue(test, GitPoller.getCandidateRank(test) > robot);
+        }
+    }
+}
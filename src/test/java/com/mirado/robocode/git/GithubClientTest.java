@@ -0,0 +1,154 @@
+package com.mirado.robocode.git;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs the client against a local stand-in for GitHub that answers conditional requests like GitHub does.
+ */
+public class GithubClientTest
+{
+    private static final String LAST_MODIFIED = "Tue, 02 May 2017 10:00:00 GMT";
+    private HttpServer server;
+    private GithubClient githubClient;
+    private volatile String etag = "\"v1\"";
+    private volatile String body = "{\"version\":1}";
+    private final List<String> ifNoneMatch = new CopyOnWriteArrayList<>();
+    private final List<String> ifModifiedSince = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/etag", exchange ->
+        {
+            String requestEtag = exchange.getRequestHeaders().getFirst("If-None-Match");
+            ifNoneMatch.add(String.valueOf(requestEtag));
+            exchange.getResponseHeaders().add("ETag", etag);
+            respond(exchange, etag.equals(requestEtag) ? 304 : 200, body);
+        });
+        server.createContext("/last-modified", exchange ->
+        {
+            String since = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            ifModifiedSince.add(String.valueOf(since));
+            exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+            respond(exchange, LAST_MODIFIED.equals(since) ? 304 : 200, body);
+        });
+        server.createContext("/uncached", exchange ->
+        {
+            ifNoneMatch.add(String.valueOf(exchange.getRequestHeaders().getFirst("If-None-Match")));
+            respond(exchange, 200, body);
+        });
+        server.start();
+        githubClient = new GithubClient();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    @Test
+    public void servesUnchangedResourceFromCacheOnEtag() throws IOException
+    {
+        assertEquals(1, githubClient.readJson(url("/etag")).get("version").asInt());
+        assertEquals(1, githubClient.readJson(url("/etag")).get("version").asInt());
+        assertEquals("null", ifNoneMatch.get(0));
+        assertEquals("\"v1\"", ifNoneMatch.get(1));
+        assertEquals(1, githubClient.getMisses());
+        assertEquals(1, githubClient.getHits());
+        assertEquals(body.length(), githubClient.getCachedBytes());
+    }
+
+    @Test
+    public void servesUnchangedResourceFromCacheOnLastModified() throws IOException
+    {
+        githubClient.read(url("/last-modified"));
+        byte[] cached = githubClient.read(url("/last-modified"));
+        assertEquals(body, new String(cached, StandardCharsets.UTF_8));
+        assertEquals(LAST_MODIFIED, ifModifiedSince.get(1));
+        assertEquals(1, githubClient.getMisses());
+        assertEquals(1, githubClient.getHits());
+    }
+
+    @Test
+    public void readsChangedResourceAgain() throws IOException
+    {
+        githubClient.read(url("/etag"));
+        etag = "\"v2\"";
+        body = "{\"version\":2}";
+        assertEquals(2, githubClient.readJson(url("/etag")).get("version").asInt());
+        githubClient.read(url("/etag"));
+        assertEquals("\"v2\"", ifNoneMatch.get(2));
+        assertEquals(2, githubClient.getMisses());
+        assertEquals(1, githubClient.getHits());
+        //The old body was replaced rather than kept alongside
+        assertEquals(body.length(), githubClient.getCachedBytes());
+    }
+
+    @Test
+    public void doesNotCacheResponsesWithoutValidators() throws IOException
+    {
+        githubClient.read(url("/uncached"));
+        githubClient.read(url("/uncached"));
+        assertEquals("null", ifNoneMatch.get(1));
+        assertEquals(2, githubClient.getMisses());
+        assertEquals(0, githubClient.getHits());
+        assertEquals(0, githubClient.getCachedBytes());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingResourceThrowsFileNotFound() throws IOException
+    {
+        githubClient.read(url("/nothing-here"));
+    }
+
+    @Test
+    public void followsNextPageLink() throws IOException
+    {
+        server.createContext("/paged", exchange ->
+        {
+            exchange.getResponseHeaders().add("Link", "<" + url("/paged?page=2") + ">; rel=\"next\", <" + url("/paged?page=9") + ">; rel=\"last\"");
+            respond(exchange, 200, "[]");
+        });
+        assertEquals(url("/paged?page=2"), githubClient.fetch(url("/paged")).getNextUrl());
+        assertNull(githubClient.fetch(url("/etag")).getNextUrl());
+    }
+
+    private String url(String path)
+    {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        if (status == 304)
+        {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody())
+        {
+            outputStream.write(bytes);
+        }
+    }
+}
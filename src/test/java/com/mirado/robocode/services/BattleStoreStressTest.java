@@ -0,0 +1,208 @@
+package com.mirado.robocode.services;
+
+import com.mirado.robocode.domain.BattleStatistics;
+import com.mirado.robocode.domain.Scoreboard;
+import net.sf.robocode.security.IHiddenSpecificationHelper;
+import org.junit.Test;
+import robocode.control.RobotResults;
+import robocode.control.RobotSpecification;
+
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the battles and the scoreboard from several threads while battles are appended one by one and in bulk, and
+ * reports the read throughput. Every scoreboard read has to add up to the battles it was built from.
+ */
+public class BattleStoreStressTest
+{
+    private static final int ROBOTS = 20;
+    private static final int ROBOTS_PER_BATTLE = 4;
+    private static final int WRITERS = 2;
+    private static final int BATTLES_PER_WRITER = 2000;
+    private static final int BULK_SIZE = 50;
+    private static final int READERS = 4;
+    private static final IHiddenSpecificationHelper SPECIFICATION_HELPER = createSpecificationHelper();
+
+    @Test(timeout = 60000)
+    public void readsStayConsistentWhileAppending() throws Exception
+    {
+        BattleStore battleStore = new BattleStore();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong reads = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++)
+        {
+            readers.add(start(failure, () ->
+            {
+                start.await();
+                int lastSize = 0;
+                while (writing.get())
+                {
+                    int size = battleStore.getBattles().size();
+                    assertTrue("Battles went from " + lastSize + " to " + size, size >= lastSize);
+                    lastSize = size;
+                    assertConsistent(battleStore.getScoreboard());
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++)
+        {
+            int writer = i;
+            writers.add(start(failure, () ->
+            {
+                start.await();
+                Map<String, BattleStatistics> bulk = new LinkedHashMap<>();
+                for (int battle = 0; battle < BATTLES_PER_WRITER; battle++)
+                {
+                    String key = writer + "-" + battle;
+                    //Every other battle goes in a bulk append, the rest one at a time
+                    if (battle % 2 == 0)
+                    {
+                        battleStore.append(key, createBattle(writer * BATTLES_PER_WRITER + battle));
+                    }
+                    else
+                    {
+                        bulk.put(key, createBattle(writer * BATTLES_PER_WRITER + battle));
+                        if (bulk.size() == BULK_SIZE)
+                        {
+                            battleStore.appendAll(bulk);
+                            bulk.clear();
+                        }
+                    }
+                }
+                battleStore.appendAll(bulk);
+            }));
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread writer : writers)
+        {
+            writer.join();
+        }
+        long elapsedNanos = System.nanoTime() - started;
+        writing.set(false);
+        for (Thread reader : readers)
+        {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(WRITERS * BATTLES_PER_WRITER, battleStore.getBattles().size());
+        assertEquals(WRITERS * BATTLES_PER_WRITER, battleStore.getScoreboard().getBattleStatistics().size());
+        assertConsistent(battleStore.getScoreboard());
+        System.out.printf("%d scoreboard reads in %d ms while appending %d battles, %.0f reads/s%n",
+                reads.get(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos), WRITERS * BATTLES_PER_WRITER,
+                reads.get() * 1e9 / elapsedNanos);
+    }
+
+    @Test
+    public void appendAllSkipsStoredBattles()
+    {
+        BattleStore battleStore = new BattleStore();
+        battleStore.append("a", createBattle(0));
+        Map<String, BattleStatistics> battles = new LinkedHashMap<>();
+        battles.put("a", createBattle(1));
+        battles.put("b", createBattle(2));
+        assertEquals(1, battleStore.appendAll(battles).size());
+        assertEquals(2, battleStore.getBattles().size());
+        assertEquals(2, battleStore.getVersion());
+        //Newest first
+        assertEquals(Instant.ofEpochSecond(2), battleStore.getScoreboard().getBattleStatistics().get(0).getTimestamp());
+        assertConsistent(battleStore.getScoreboard());
+    }
+
+    /**
+     * The totals on the scoreboard have to match the battles published with it.
+     */
+    private static void assertConsistent(Scoreboard scoreboard)
+    {
+        long battleScore = 0;
+        List<BattleStatistics> battles = scoreboard.getBattleStatistics();
+        for (int i = 0; i < battles.size(); i++)
+        {
+            if (i > 0)
+            {
+                assertTrue("Battles are not newest first", !battles.get(i).getTimestamp().isAfter(battles.get(i - 1).getTimestamp()));
+            }
+            for (RobotResults results : battles.get(i).getResults())
+            {
+                battleScore += results.getScore();
+            }
+        }
+        long totalScore = 0;
+        for (RobotResults results : scoreboard.getScoreBoard())
+        {
+            totalScore += results.getScore();
+        }
+        assertEquals("Scoreboard doesn't match its battles", battleScore, totalScore);
+    }
+
+    private static BattleStatistics createBattle(int battle)
+    {
+        List<RobotResults> results = new ArrayList<>();
+        for (int i = 0; i < ROBOTS_PER_BATTLE; i++)
+        {
+            String name = "robot" + ((battle + i * 7) % ROBOTS);
+            RobotSpecification robot = SPECIFICATION_HELPER.createSpecification(null, name, "author", null, "1.0", null, "", name, null);
+            results.add(new RobotResults(robot, null, i + 1, 100 - i * 10, 50, 10, 20, 5, 3, 1, i == 0 ? 1 : 0, i == 1 ? 1 : 0, i == 2 ? 1 : 0));
+        }
+        return BattleStatistics
+                .newBuilder()
+                .timestamp(Instant.ofEpochSecond(battle))
+                .results(results)
+                .build();
+    }
+
+    private static Thread start(AtomicReference<Throwable> failure, Task task)
+    {
+        Thread thread = new Thread(() ->
+        {
+            try
+            {
+                task.run();
+            }
+            catch (Throwable ex)
+            {
+                failure.compareAndSet(null, ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static IHiddenSpecificationHelper createSpecificationHelper()
+    {
+        try
+        {
+            Method method = RobotSpecification.class.getDeclaredMethod("createHiddenHelper");
+            method.setAccessible(true);
+            return (IHiddenSpecificationHelper) method.invoke(null);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private interface Task
+    {
+        void run() throws Exception;
+    }
+}